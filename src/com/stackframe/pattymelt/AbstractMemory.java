@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+/**
+ * A skeletal implementation of the Memory interface. The bulk operations are
+ * done a word at a time with get and put, so a subclass only needs to provide
+ * those and size, and can override the bulk operations with something faster.
+ *
+ * @author mcculley
+ */
+public abstract class AbstractMemory implements Memory {
+
+    /**
+     * Check that a block of words fits in this memory.
+     *
+     * @param address the address of the first word
+     * @param length the number of words
+     * @throws IndexOutOfBoundsException if the block does not fit
+     */
+    protected void checkRange(int address, int length) {
+        if (address < 0 || length < 0 || address > size() - length) {
+            throw new IndexOutOfBoundsException(String.format("%d words at 0x%04X", length, address));
+        }
+    }
+
+    @Override
+    public void read(int address, short[] destination, int offset, int length) {
+        checkRange(address, length);
+        for (int i = 0; i < length; i++) {
+            destination[offset + i] = get(address + i);
+        }
+    }
+
+    @Override
+    public void write(int address, short[] source, int offset, int length) {
+        checkRange(address, length);
+        for (int i = 0; i < length; i++) {
+            put(address + i, source[offset + i]);
+        }
+    }
+
+    @Override
+    public void fill(int address, int length, short value) {
+        checkRange(address, length);
+        for (int i = 0; i < length; i++) {
+            put(address + i, value);
+        }
+    }
+
+    @Override
+    public void copy(int source, int destination, int length) {
+        checkRange(source, length);
+        checkRange(destination, length);
+        if (destination < source) {
+            for (int i = 0; i < length; i++) {
+                put(destination + i, get(source + i));
+            }
+        } else {
+            for (int i = length - 1; i >= 0; i--) {
+                put(destination + i, get(source + i));
+            }
+        }
+    }
+}
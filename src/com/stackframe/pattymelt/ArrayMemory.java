@@ -27,13 +27,16 @@
  */
 package com.stackframe.pattymelt;
 
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
 /**
  * An implementation of the Memory interface that uses an array for the backing
  * store.
  *
  * @author mcculley
  */
-public class ArrayMemory implements Memory {
+public class ArrayMemory extends AbstractMemory {
 
     public final short[] array;
 
@@ -65,6 +68,41 @@ public class ArrayMemory implements Memory {
         array[address] = value;
     }
 
+    @Override
+    public void read(int address, short[] destination, int offset, int length) {
+        checkRange(address, length);
+        System.arraycopy(array, address, destination, offset, length);
+    }
+
+    @Override
+    public void write(int address, short[] source, int offset, int length) {
+        checkRange(address, length);
+        System.arraycopy(source, offset, array, address, length);
+    }
+
+    @Override
+    public void fill(int address, int length, short value) {
+        checkRange(address, length);
+        Arrays.fill(array, address, address + length, value);
+    }
+
+    @Override
+    public void copy(int source, int destination, int length) {
+        checkRange(source, length);
+        checkRange(destination, length);
+        System.arraycopy(array, source, array, destination, length);
+    }
+
+    /**
+     * Get a view of this memory as a ShortBuffer, for code which wants to move
+     * data in and out with NIO.
+     *
+     * @return a view of the backing array
+     */
+    public ShortBuffer buffer() {
+        return ShortBuffer.wrap(array);
+    }
+
     @Override
     public int size() {
         return array.length;
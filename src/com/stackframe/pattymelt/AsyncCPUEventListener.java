@@ -0,0 +1,352 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import com.stackframe.pattymelt.DCPU16.CPUEvent;
+import com.stackframe.pattymelt.DCPU16.CPUEventListener;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A CPUEventListener which passes events on to another listener from a thread
+ * of its own, so that a slow listener does not hold up the CPU.
+ *
+ * Events are put in a preallocated ring buffer which the delivery thread
+ * drains in batches. The ring has a single producer, so events for a given
+ * AsyncCPUEventListener must only come from one thread at a time, which is the
+ * case for the events from a CPU. Consecutive instructionExecuted
+ * notifications are delivered as one. A modification of a block of memory
+ * takes a single entry and is delivered as a single event. What happens when
+ * the ring is full is decided by an OverflowPolicy.
+ *
+ * @author mcculley
+ */
+public class AsyncCPUEventListener implements CPUEventListener {
+
+    /**
+     * What to do with an event when the ring buffer is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Discard the event.
+         */
+        DROP,
+        /**
+         * Remember which addresses were modified and deliver them once when
+         * there is room, with each run of adjacent addresses as one event.
+         * instructionExecuted notifications are always coalesced into one
+         * pending notification under this policy.
+         */
+        COALESCE,
+        /**
+         * Make the CPU wait until there is room. If the CPU thread is
+         * interrupted while waiting, the event is discarded.
+         */
+        BLOCK
+    }
+    // The ring holds the length of a modification in the upper 32 bits and its address in the lower, or INSTRUCTION_EXECUTED.
+    private static final long INSTRUCTION_EXECUTED = -1;
+    private final CPUEventListener listener;
+    private final OverflowPolicy policy;
+    private final long[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private long cachedHead;
+    private final AtomicLongArray overflowed;
+    private final AtomicBoolean overflowPending = new AtomicBoolean();
+    private final AtomicBoolean instructionPending = new AtomicBoolean();
+    private volatile boolean delivering;
+    private final AtomicLong dropped = new AtomicLong();
+    private final CPUEvent instructionEvent;
+    private final CPUEvent memoryEvent;
+    private final Thread deliveryThread;
+    private volatile boolean consumerWaiting;
+    private volatile Thread producerWaiting;
+    private volatile boolean stopped;
+
+    /**
+     * Create an AsyncCPUEventListener and start its delivery thread.
+     *
+     * @param source the CPU the events come from
+     * @param listener the listener to deliver events to
+     * @param capacity the number of events the ring buffer can hold, which is
+     * rounded up to a power of two
+     * @param policy what to do when the ring buffer is full
+     */
+    public AsyncCPUEventListener(DCPU16 source, CPUEventListener listener, int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        this.listener = listener;
+        this.policy = policy;
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        ring = new long[size];
+        mask = size - 1;
+        overflowed = policy == OverflowPolicy.COALESCE ? new AtomicLongArray(0x10000 / 64) : null;
+        instructionEvent = new CPUEvent(source);
+        memoryEvent = new CPUEvent(source, -1);
+        deliveryThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                deliver();
+            }
+        }, "CPU event delivery");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    /**
+     * Get the number of events which have been discarded because the ring
+     * buffer was full.
+     *
+     * @return the number of events discarded
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Wait until every event passed to this listener so far has been
+     * delivered, or discarded.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitDelivery() throws InterruptedException {
+        long target = tail.get();
+        while (!stopped && deliveryThread.isAlive() && (head.get() < target || instructionPending.get() || overflowPending.get() || delivering)) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stop the delivery thread. Events which have not been delivered yet are
+     * discarded.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(deliveryThread);
+    }
+
+    @Override
+    public void instructionExecuted(CPUEvent event) {
+        if (policy == OverflowPolicy.COALESCE) {
+            if (!instructionPending.get() && !instructionPending.getAndSet(true)) {
+                wakeConsumer();
+            }
+        } else {
+            offer(INSTRUCTION_EXECUTED);
+        }
+    }
+
+    @Override
+    public void memoryModified(CPUEvent event) {
+        offer((long) event.lengthOfMemoryModification() << 32 | event.addressOfMemoryModification());
+    }
+
+    private void offer(long value) {
+        long t = tail.get();
+        while (t - cachedHead == ring.length) {
+            cachedHead = head.get();
+            if (t - cachedHead < ring.length) {
+                break;
+            }
+
+            switch (policy) {
+                case DROP:
+                    dropped.incrementAndGet();
+                    return;
+                case COALESCE:
+                    coalesce((int) value, (int) (value >>> 32));
+                    return;
+                case BLOCK:
+                    if (!waitForRoom()) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+            }
+        }
+
+        ring[(int) t & mask] = value;
+        tail.set(t + 1);
+        wakeConsumer();
+    }
+
+    private void coalesce(int address, int length) {
+        int end = address + length;
+        if (address < 0 || end > overflowed.length() * 64) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        for (int a = address; a < end;) {
+            int word = a >>> 6;
+            int next = Math.min(end, (word + 1) * 64);
+            // The bits from a up to next, which are all in this word.
+            long mask = (next - a == 64 ? -1L : (1L << (next - a)) - 1) << a;
+            while (true) {
+                long bits = overflowed.get(word);
+                if ((bits & mask) == mask || overflowed.compareAndSet(word, bits, bits | mask)) {
+                    break;
+                }
+            }
+
+            a = next;
+        }
+
+        overflowPending.set(true);
+        wakeConsumer();
+    }
+
+    /**
+     * Wait for the consumer to make room.
+     *
+     * @return false if the producer was interrupted while waiting
+     */
+    private boolean waitForRoom() {
+        Thread current = Thread.currentThread();
+        producerWaiting = current;
+        try {
+            while (tail.get() - head.get() == ring.length) {
+                if (current.isInterrupted() || stopped) {
+                    return false;
+                }
+
+                wakeConsumer();
+                LockSupport.park(this);
+            }
+
+            return true;
+        } finally {
+            producerWaiting = null;
+        }
+    }
+
+    private void wakeConsumer() {
+        if (consumerWaiting) {
+            LockSupport.unpark(deliveryThread);
+        }
+    }
+
+    private boolean isEmpty() {
+        return head.get() == tail.get() && !instructionPending.get() && !overflowPending.get();
+    }
+
+    private void deliver() {
+        while (!stopped) {
+            if (isEmpty()) {
+                consumerWaiting = true;
+                // Check again now that the producer can see we are waiting.
+                if (isEmpty() && !stopped) {
+                    LockSupport.park(this);
+                }
+
+                consumerWaiting = false;
+                continue;
+            }
+
+            drain();
+        }
+    }
+
+    private void drain() {
+        delivering = true;
+        long h = head.get();
+        long t = tail.get();
+        boolean instructionExecuted = false;
+        while (h != t) {
+            long value = ring[(int) h & mask];
+            h++;
+            if (value == INSTRUCTION_EXECUTED) {
+                instructionExecuted = true;
+            } else {
+                if (instructionExecuted) {
+                    listener.instructionExecuted(instructionEvent);
+                    instructionExecuted = false;
+                }
+
+                memoryEvent.setMemoryModification((int) value, (int) (value >>> 32));
+                listener.memoryModified(memoryEvent);
+            }
+
+            // Give back room as we go so that a blocked CPU can get going again.
+            head.set(h);
+            Thread producer = producerWaiting;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+
+        if (overflowPending.getAndSet(false)) {
+            // Deliver each run of modified addresses as one event.
+            int start = -1;
+            for (int word = 0; word < overflowed.length(); word++) {
+                long bits = overflowed.get(word) == 0 ? 0 : overflowed.getAndSet(word, 0);
+                if (bits == (start == -1 ? 0 : -1L)) {
+                    // Nothing starts or ends in this word.
+                    continue;
+                }
+
+                for (int bit = 0; bit < 64; bit++) {
+                    boolean modified = (bits & (1L << bit)) != 0;
+                    if (modified && start == -1) {
+                        start = word << 6 | bit;
+                    } else if (!modified && start != -1) {
+                        memoryEvent.setMemoryModification(start, (word << 6 | bit) - start);
+                        listener.memoryModified(memoryEvent);
+                        start = -1;
+                    }
+                }
+            }
+
+            if (start != -1) {
+                memoryEvent.setMemoryModification(start, overflowed.length() * 64 - start);
+                listener.memoryModified(memoryEvent);
+            }
+        }
+
+        if (instructionPending.getAndSet(false)) {
+            instructionExecuted = true;
+        }
+
+        if (instructionExecuted) {
+            listener.instructionExecuted(instructionEvent);
+        }
+
+        delivering = false;
+    }
+}
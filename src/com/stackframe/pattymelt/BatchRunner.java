@@ -0,0 +1,393 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs DCPU-16 programs without a display and reports how they finished.
+ *
+ * Each program is run once for each input set, or once with no input if there
+ * are no input sets. Runs are spread over a fixed pool of worker threads, each
+ * run on its own CPU with a HeadlessConsole. A run stops when the program
+ * halts, when it is waiting for input and there is none left, when it hits an
+ * illegal opcode or when it reaches the cycle limit. The summary is written as
+ * one line of JSON per run, in the order the runs were given.
+ *
+ * @author mcculley
+ */
+public class BatchRunner {
+
+    /**
+     * Why a run stopped.
+     */
+    public enum HaltReason {
+
+        /**
+         * The program jumped to itself.
+         */
+        HALTED,
+        /**
+         * The program was polling the keyboard and there was no input left.
+         */
+        INPUT_EXHAUSTED,
+        /**
+         * The program ran for the maximum number of cycles.
+         */
+        CYCLE_LIMIT,
+        /**
+         * The program executed an illegal opcode.
+         */
+        ILLEGAL_OPCODE,
+        /**
+         * The worker running the program was interrupted.
+         */
+        INTERRUPTED,
+        /**
+         * The program or its input could not be read or loaded, or something
+         * else went wrong running it.
+         */
+        ERROR
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Result {
+
+        private final File program;
+        private final File input;
+        private HaltReason reason;
+        private String error;
+        private short[] registers = new short[DCPU16Emulator.NUM_REGISTERS];
+        private long cycles;
+        private long instructions;
+        private long wallNanos;
+        private String[] screen = new String[0];
+
+        private Result(File program, File input) {
+            this.program = program;
+            this.input = input;
+        }
+
+        public HaltReason reason() {
+            return reason;
+        }
+
+        public short register(DCPU16.Register r) {
+            return registers[r.ordinal()];
+        }
+
+        public short PC() {
+            return registers[9];
+        }
+
+        public long cycles() {
+            return cycles;
+        }
+
+        public String[] screen() {
+            return screen.clone();
+        }
+
+        private static void appendString(StringBuilder buf, String s) {
+            buf.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    buf.append('\\').append(c);
+                } else if (c < 0x20) {
+                    buf.append(String.format("\\u%04x", (int) c));
+                } else {
+                    buf.append(c);
+                }
+            }
+
+            buf.append('"');
+        }
+
+        /**
+         * Format this Result as a JSON object on one line.
+         *
+         * @return the JSON
+         */
+        public String toJSON() {
+            StringBuilder buf = new StringBuilder();
+            buf.append("{\"program\":");
+            appendString(buf, program.getPath());
+            buf.append(",\"input\":");
+            if (input == null) {
+                buf.append("null");
+            } else {
+                appendString(buf, input.getPath());
+            }
+
+            buf.append(",\"halt\":\"").append(reason).append('"');
+            if (error != null) {
+                buf.append(",\"error\":");
+                appendString(buf, error);
+            }
+
+            buf.append(",\"registers\":{");
+            String[] names = {"A", "B", "C", "X", "Y", "Z", "I", "J", "SP", "PC", "O"};
+            for (int i = 0; i < names.length; i++) {
+                if (i != 0) {
+                    buf.append(',');
+                }
+
+                buf.append('"').append(names[i]).append("\":\"").append(DCPU16Utilities.toHex(registers[i])).append('"');
+            }
+
+            buf.append("},\"cycles\":").append(cycles);
+            buf.append(",\"instructions\":").append(instructions);
+            buf.append(",\"wallNanos\":").append(wallNanos);
+            buf.append(",\"screen\":[");
+            for (int i = 0; i < screen.length; i++) {
+                if (i != 0) {
+                    buf.append(',');
+                }
+
+                appendString(buf, screen[i]);
+            }
+
+            buf.append("]}");
+            return buf.toString();
+        }
+    }
+    /*
+     * The number of cycles a run executes between checks of whether the
+     * program has halted or is waiting for input that will never come.
+     */
+    private static final long SLICE_CYCLES = 10000;
+    private final String engine;
+    private final long cycleLimit;
+
+    /**
+     * Create a BatchRunner.
+     *
+     * @param engine the implementation of DCPU16 to use, as understood by
+     * DCPU16Utilities.createCPU
+     * @param cycleLimit the maximum number of cycles to run each program for
+     */
+    public BatchRunner(String engine, long cycleLimit) {
+        this.engine = engine;
+        this.cycleLimit = cycleLimit;
+    }
+
+    private static short[] readKeys(File input) throws IOException {
+        if (input == null) {
+            return new short[0];
+        }
+
+        InputStream inputStream = new FileInputStream(input);
+        try {
+            short[] keys = new short[(int) input.length()];
+            int n = 0;
+            while (n < keys.length) {
+                int value = inputStream.read();
+                if (value == -1) {
+                    break;
+                }
+
+                keys[n++] = (short) value;
+            }
+
+            return Arrays.copyOf(keys, n);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Run a program.
+     *
+     * @param program the program image, binary or hexadecimal
+     * @param input a file of keys to type, or null for no input
+     * @return the outcome of the run
+     */
+    public Result run(File program, File input) {
+        Result result = new Result(program, input);
+        try {
+            run(result);
+        } catch (RuntimeException re) {
+            // Something like an image too big for RAM or an unknown engine only fails this run, not the whole batch.
+            result.reason = HaltReason.ERROR;
+            result.error = re.toString();
+        }
+
+        return result;
+    }
+
+    private void run(Result result) {
+        File program = result.program;
+        File input = result.input;
+        DCPU16 cpu = DCPU16Utilities.createCPU(engine);
+        final HeadlessConsole console;
+        try {
+            DCPU16Utilities.load(program, cpu.memory());
+            console = new HeadlessConsole(16, 32, readKeys(input));
+        } catch (IOException ioe) {
+            result.reason = HaltReason.ERROR;
+            result.error = ioe.toString();
+            return;
+        }
+
+        cpu.install(console.getScreen(), 0x8000);
+        cpu.install(console.getKeyboard(), 0x9000);
+        long start = System.nanoTime();
+        try {
+            // The CPU is run in slices with runUntil so that the engine can execute whole blocks at a time.
+            Thread thread = Thread.currentThread();
+            while (true) {
+                DCPU16.State state = cpu.state();
+                if (state == DCPU16.State.HALTED) {
+                    result.reason = HaltReason.HALTED;
+                    break;
+                } else if (state == DCPU16.State.IDLE) {
+                    result.reason = HaltReason.INPUT_EXHAUSTED;
+                    break;
+                } else if (cpu.cycles() >= cycleLimit) {
+                    result.reason = HaltReason.CYCLE_LIMIT;
+                    break;
+                } else if (thread.isInterrupted()) {
+                    result.reason = HaltReason.INTERRUPTED;
+                    break;
+                }
+
+                cpu.runUntil(Math.min(cycleLimit, cpu.cycles() + SLICE_CYCLES));
+            }
+        } catch (IllegalOpcodeException ioe) {
+            result.reason = HaltReason.ILLEGAL_OPCODE;
+            result.error = String.format("illegal opcode 0x%04x", ioe.opcode);
+        }
+
+        result.wallNanos = System.nanoTime() - start;
+        result.cycles = cpu.cycles();
+        result.instructions = cpu.instructions();
+        for (DCPU16.Register r : DCPU16.Register.values()) {
+            result.registers[r.ordinal()] = cpu.register(r);
+        }
+
+        result.registers[8] = cpu.SP();
+        result.registers[9] = cpu.PC();
+        result.registers[10] = cpu.O();
+        result.screen = console.dump();
+    }
+
+    /**
+     * Run every program with every input set on a pool of worker threads.
+     *
+     * @param programs the programs to run
+     * @param inputs the input sets, or an empty list to run each program once
+     * with no input
+     * @param threads the number of worker threads to use
+     * @return the results, in the order of programs and then inputs
+     * @throws InterruptedException if interrupted while waiting for the runs
+     */
+    public List<Result> runAll(List<File> programs, List<File> inputs, int threads) throws InterruptedException {
+        if (inputs.isEmpty()) {
+            inputs = Arrays.asList((File) null);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final File program : programs) {
+                for (final File input : inputs) {
+                    futures.add(pool.submit(new Callable<Result>() {
+
+                        @Override
+                        public Result call() {
+                            return run(program, input);
+                        }
+                    }));
+                }
+            }
+
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ee) {
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        LinkedList<String> argList = new LinkedList<String>(Arrays.asList(args));
+        String engine = "interpreter";
+        long cycleLimit = 10 * 1000 * 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> programs = new ArrayList<File>();
+        List<File> inputs = new ArrayList<File>();
+        while (!argList.isEmpty()) {
+            String arg = argList.removeFirst();
+            if (arg.equals("-engine") && !argList.isEmpty()) {
+                engine = argList.removeFirst();
+            } else if (arg.equals("-cycles") && !argList.isEmpty()) {
+                cycleLimit = Long.parseLong(argList.removeFirst());
+            } else if (arg.equals("-threads") && !argList.isEmpty()) {
+                threads = Integer.parseInt(argList.removeFirst());
+            } else if (arg.equals("-input") && !argList.isEmpty()) {
+                inputs.add(new File(argList.removeFirst()));
+            } else {
+                programs.add(new File(arg));
+            }
+        }
+
+        if (programs.isEmpty()) {
+            System.err.println("usage: BatchRunner [-engine interpreter|block|jit] [-cycles <limit>] [-threads <n>] [-input <key file>]... <hex or binary file>...");
+            System.exit(1);
+        }
+
+        for (Result result : new BatchRunner(engine, cycleLimit).runAll(programs, inputs, threads)) {
+            System.out.println(result.toJSON());
+        }
+    }
+}
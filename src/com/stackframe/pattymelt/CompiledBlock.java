@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+/**
+ * The base class of the classes which DCPU16JIT generates for hot basic blocks.
+ *
+ * This has to be public because the generated classes are defined by their own
+ * class loaders and so live outside of this package as far as access checks are
+ * concerned. Nothing outside of the JIT should use it.
+ *
+ * @author mcculley
+ */
+public abstract class CompiledBlock {
+
+    private DCPU16Emulator cpu;
+    private Memory memory;
+    private DCPU16BlockEmulator.Block block;
+
+    protected CompiledBlock() {
+    }
+
+    void init(DCPU16Emulator cpu, DCPU16BlockEmulator.Block block) {
+        this.cpu = cpu;
+        this.memory = cpu.memory();
+        this.block = block;
+    }
+
+    /**
+     * Execute the block.
+     *
+     * @param registers the registers, in the order used by
+     * DCPU16Emulator.saveRegisters, which are read on entry and written on exit
+     * @return the number of instructions executed
+     */
+    public abstract int execute(short[] registers);
+
+    /**
+     * Read a word of memory.
+     *
+     * @param address the address to read
+     * @return the word read, as an unsigned value
+     */
+    protected final int read(int address) {
+        return memory.get(address) & 0xFFFF;
+    }
+
+    /**
+     * Write a word of memory.
+     *
+     * @param address the address to write
+     * @param value the value to write
+     * @return false if the write modified the block, in which case the block
+     * must return before executing any further instructions
+     */
+    protected final boolean write(int address, int value) {
+        memory.put(address, (short) value);
+        return block.valid;
+    }
+
+    /**
+     * Perform the test of an IF instruction, which ends a block.
+     *
+     * @param opcode the opcode of the instruction
+     * @param a the value of the first operand
+     * @param b the value of the second operand
+     */
+    protected final void test(int opcode, int a, int b) {
+        boolean result;
+        switch (opcode) {
+            case 0xc:
+                result = a == b;
+                break;
+            case 0xd:
+                result = a != b;
+                break;
+            case 0xe:
+                result = a > b;
+                break;
+            case 0xf:
+                result = (a & b) != 0;
+                break;
+            default:
+                throw new AssertionError("not a test: " + opcode);
+        }
+
+        cpu.setSkipping(!result);
+    }
+}
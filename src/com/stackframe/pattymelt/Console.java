@@ -27,47 +27,93 @@
  */
 package com.stackframe.pattymelt;
 
+import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.event.KeyEvent;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
-import java.util.LinkedList;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import javax.swing.JComponent;
-import javax.swing.JTextArea;
-import javax.swing.SwingUtilities;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.Document;
+import javax.swing.Timer;
 
 /**
  * A console for DCPU-16.
  *
+ * The screen is a plain array of words which the CPU reads and writes without
+ * waiting for anything. Reads return the whole word as written, attributes
+ * included. Each write marks the cell dirty in a bitmap, and the widget repaints
+ * the dirty cells at a fixed frame rate.
+ *
  * @author mcculley
  */
 public class Console {
 
     // FIXME: Add keyboard support
     private static final int bufferSize = 16;
-    private final LinkedList<Short> keyboardBuffer = new LinkedList<Short>();
-    private final Memory textRAM = new Memory() {
+    // The number of reads of an empty keyboard in a row, with the CPU making no progress in between, after which it is taken to be waiting for a key.
+    private static final int STARVED_READS = 64;
+    private static final int FRAME_RATE = 60;
+    // The number of frames between blinking characters turning on or off.
+    private static final int BLINK_FRAMES = FRAME_RATE / 2;
+    /*
+     * A word on the screen is the character in the low 7 bits, a blink bit,
+     * then the background and foreground colors as 4 bit indexes into this
+     * palette. A word with both colors 0 is drawn in the colors of the widget.
+     */
+    private static final Color[] PALETTE = {
+        new Color(0x000000), new Color(0x0000AA), new Color(0x00AA00), new Color(0x00AAAA),
+        new Color(0xAA0000), new Color(0xAA00AA), new Color(0xAA5500), new Color(0xAAAAAA),
+        new Color(0x555555), new Color(0x5555FF), new Color(0x55FF55), new Color(0x55FFFF),
+        new Color(0xFF5555), new Color(0xFF55FF), new Color(0xFFFF55), new Color(0xFFFFFF)
+    };
+    /*
+     * Keys are passed from the AWT thread to the CPU thread in a ring buffer
+     * with a single producer and a single consumer, so neither side needs a
+     * lock. The indexes only ever increase and are masked with bufferSize,
+     * which is a power of two, to index the buffer.
+     */
+    private final short[] keyboardBuffer = new short[bufferSize];
+    private volatile int keyboardHead;
+    private volatile int keyboardTail;
+    private int emptyReads;
+    private volatile Thread keyboardWaiter;
+    private final short[] vram;
+    private final AtomicLongArray dirty;
+    private final Memory textRAM = new AbstractMemory() {
 
         @Override
         public void put(int address, short value) {
-            char c = (char) (value & 0x7f);
-            if (c == '\n') {
-                return;
-            }
-
-            int attributes = (value >> 7) & 0x1ff;
-            // FIXME: I have no idea yet how to correctly interpret the color information.
-            setValue(address, c);
+            vram[address] = value;
+            markDirty(address);
         }
 
         @Override
         public short get(int address) {
-            try {
-                return (short) textArea.getDocument().getText(toDocument(address), 1).charAt(0);
-            } catch (BadLocationException ble) {
-                // This shouldn't happen because we control the incoming location.
-                throw new AssertionError(ble);
+            return vram[address];
+        }
+
+        @Override
+        public void read(int address, short[] destination, int offset, int length) {
+            checkRange(address, length);
+            System.arraycopy(vram, address, destination, offset, length);
+        }
+
+        @Override
+        public void write(int address, short[] source, int offset, int length) {
+            checkRange(address, length);
+            System.arraycopy(source, offset, vram, address, length);
+            for (int i = 0; i < length; i++) {
+                markDirty(address + i);
             }
         }
 
@@ -76,9 +122,9 @@ public class Console {
             return grid;
         }
     };
-    private final JTextArea textArea;
+    private final ScreenWidget screenWidget;
     private final int numRows, numColumns, grid;
-    private final Peripheral screen = new Peripheral() {
+    private final Peripheral screen = new StatefulPeripheral() {
 
         @Override
         public Memory memory() {
@@ -89,19 +135,82 @@ public class Console {
         public String name() {
             return "screen";
         }
+
+        @Override
+        public int stateSize() {
+            return grid * 2;
+        }
+
+        @Override
+        public void saveState(ByteBuffer buffer) {
+            buffer.asShortBuffer().put(vram);
+            buffer.position(buffer.position() + grid * 2);
+        }
+
+        @Override
+        public void restoreState(ByteBuffer buffer) {
+            short[] words = new short[grid];
+            buffer.asShortBuffer().get(words);
+            buffer.position(buffer.position() + grid * 2);
+            textRAM.write(0, words, 0, grid);
+        }
     };
-    private final Memory keyboardRAM = new ArrayMemory(1) {
+    private final Memory keyboardRAM = new AbstractMemory() {
 
         @Override
         public short get(int address) {
-            if (keyboardBuffer.isEmpty()) {
+            int head = keyboardHead;
+            if (head == keyboardTail) {
+                if (emptyReads < STARVED_READS) {
+                    emptyReads++;
+                }
+
                 return 0;
-            } else {
-                return keyboardBuffer.removeFirst();
             }
+
+            short key = keyboardBuffer[head & (bufferSize - 1)];
+            keyboardHead = head + 1;
+            emptyReads = 0;
+            return key;
+        }
+
+        @Override
+        public void put(int address, short value) {
+            // Writes to the keyboard are ignored.
+        }
+
+        @Override
+        public int size() {
+            return 1;
         }
     };
-    private final Peripheral keyboard = new Peripheral() {
+    private final InputPeripheral keyboard = new InputPeripheral() {
+
+        @Override
+        public boolean starved() {
+            return emptyReads >= STARVED_READS && keyboardHead == keyboardTail;
+        }
+
+        @Override
+        public void resetStarved() {
+            emptyReads = 0;
+        }
+
+        @Override
+        public void awaitInput() throws InterruptedException {
+            keyboardWaiter = Thread.currentThread();
+            try {
+                // Check again after setting the waiter so that a key typed in between is not missed.
+                if (keyboardHead == keyboardTail) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                keyboardWaiter = null;
+            }
+        }
 
         @Override
         public Memory memory() {
@@ -114,80 +223,193 @@ public class Console {
         }
     };
 
-    private void setValue(final int address, final char c) {
-        if (SwingUtilities.isEventDispatchThread()) {
-            setValueOnSwingThread(address, c);
-        } else {
-            try {
-                SwingUtilities.invokeAndWait(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        setValueOnSwingThread(address, c);
-                    }
-                });
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+    private void markDirty(int address) {
+        int word = address >> 6;
+        long bit = 1L << address;
+        while (true) {
+            long bits = dirty.get(word);
+            if ((bits & bit) != 0 || dirty.compareAndSet(word, bits, bits | bit)) {
+                return;
             }
         }
     }
 
-    private void setValueOnSwingThread(int address, char c) {
-        assert SwingUtilities.isEventDispatchThread();
-        Document document = textArea.getDocument();
-        try {
-            address = toDocument(address);
-            document.remove(address, 1);
-            String s = "" + c;
-            document.insertString(address, s, null);
-        } catch (BadLocationException ble) {
-            // This shouldn't happen because we control the incoming location.
-            throw new AssertionError(ble);
+    /**
+     * Add a key to the keyboard buffer. This must only be called from one
+     * thread, which is normally the AWT event thread.
+     *
+     * @param key the key
+     */
+    void typed(short key) {
+        int tail = keyboardTail;
+        if (tail - keyboardHead < bufferSize) {
+            // FIXME: Not sure if this is how this is supposed to work.
+            keyboardBuffer[tail & (bufferSize - 1)] = key;
+            keyboardTail = tail + 1;
+            Thread waiter = keyboardWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
         }
     }
 
-    private int toDocument(int address) {
-        int incr = address / numColumns;
-        return address + incr;
-    }
+    /**
+     * The widget that draws the screen.
+     */
+    private class ScreenWidget extends JComponent {
 
-    public Console(int numRows, int numColumns) {
-        this.numRows = numRows;
-        this.numColumns = numColumns;
-        grid = numRows * numColumns;
-        textArea = new JTextArea(numRows, numColumns);
-        textArea.setFont(new Font("Monospaced", Font.PLAIN, 18));
-        textArea.setEditable(false);
-        StringBuilder buf = new StringBuilder();
-        for (int i = 0, c = 0; i < grid; i++) {
-            buf.append(' ');
-            if (++c == numColumns) {
-                buf.append('\n');
-                c = 0;
+        private static final long serialVersionUID = 1L;
+        private final Timer timer;
+        private int frame;
+        private boolean blinkOn = true;
+
+        ScreenWidget() {
+            setFont(new Font("Monospaced", Font.PLAIN, 18));
+            setForeground(Color.BLACK);
+            setBackground(Color.WHITE);
+            setOpaque(true);
+            setFocusable(true);
+            addKeyListener(new KeyAdapter() {
+                @Override
+                public void keyTyped(KeyEvent ke) {
+                    typed((short) ke.getKeyChar());
+                }
+            });
+            addMouseListener(new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent me) {
+                    requestFocusInWindow();
+                }
+            });
+            timer = new Timer(1000 / FRAME_RATE, new ActionListener() {
+
+                @Override
+                public void actionPerformed(ActionEvent ae) {
+                    frame();
+                }
+            });
+        }
+
+        @Override
+        public void addNotify() {
+            super.addNotify();
+            timer.start();
+        }
+
+        @Override
+        public void removeNotify() {
+            timer.stop();
+            super.removeNotify();
+        }
+
+        private int cellWidth() {
+            return getFontMetrics(getFont()).charWidth('M');
+        }
+
+        private int cellHeight() {
+            return getFontMetrics(getFont()).getHeight();
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            Insets insets = getInsets();
+            return new Dimension(cellWidth() * numColumns + insets.left + insets.right, cellHeight() * numRows + insets.top + insets.bottom);
+        }
+
+        /**
+         * Repaint the cells which have been written since the last frame.
+         */
+        private void frame() {
+            if (++frame % BLINK_FRAMES == 0) {
+                blinkOn = !blinkOn;
+                for (int i = 0; i < grid; i++) {
+                    if ((vram[i] & 0x80) != 0) {
+                        markDirty(i);
+                    }
+                }
+            }
+
+            Insets insets = getInsets();
+            int width = cellWidth();
+            int height = cellHeight();
+            for (int word = 0; word < dirty.length(); word++) {
+                if (dirty.get(word) == 0) {
+                    continue;
+                }
+
+                long bits = dirty.getAndSet(word, 0);
+                while (bits != 0) {
+                    int address = word << 6 | Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    // The RepaintManager merges these into as few paints as it can.
+                    repaint(insets.left + address % numColumns * width, insets.top + address / numColumns * height, width, height);
+                }
             }
         }
 
-        textArea.setText(buf.toString());
-        textArea.addKeyListener(new KeyAdapter() {
-            @Override
-            public void keyTyped(KeyEvent ke) {
-                if (keyboardBuffer.size() < bufferSize) {
-                    // FIXME: Not sure if this is how this is supposed to work.
-                    keyboardBuffer.add((short) ke.getKeyChar());
+        @Override
+        protected void paintComponent(Graphics g) {
+            Insets insets = getInsets();
+            FontMetrics metrics = g.getFontMetrics(getFont());
+            int width = metrics.charWidth('M');
+            int height = metrics.getHeight();
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            int firstRow = Math.max(0, (clip.y - insets.top) / height);
+            int lastRow = Math.min(numRows - 1, (clip.y + clip.height - insets.top) / height);
+            int firstColumn = Math.max(0, (clip.x - insets.left) / width);
+            int lastColumn = Math.min(numColumns - 1, (clip.x + clip.width - insets.left) / width);
+            char[] c = new char[1];
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    int value = vram[row * numColumns + column] & 0xFFFF;
+                    int foregroundIndex = value >> 12;
+                    int backgroundIndex = (value >> 8) & 0xf;
+                    Color foreground = getForeground();
+                    Color background = getBackground();
+                    if (foregroundIndex != 0 || backgroundIndex != 0) {
+                        foreground = PALETTE[foregroundIndex];
+                        background = PALETTE[backgroundIndex];
+                    }
+
+                    int x = insets.left + column * width;
+                    int y = insets.top + row * height;
+                    g.setColor(background);
+                    g.fillRect(x, y, width, height);
+                    c[0] = (char) (value & 0x7f);
+                    boolean visible = blinkOn || (value & 0x80) == 0;
+                    if (visible && c[0] >= 0x20 && c[0] < 0x7f) {
+                        g.setColor(foreground);
+                        g.drawChars(c, 0, 1, x, y + metrics.getAscent());
+                    }
                 }
             }
-        });
+        }
+    }
+
+    public Console(int numRows, int numColumns) {
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+        grid = numRows * numColumns;
+        vram = new short[grid];
+        dirty = new AtomicLongArray((grid + 63) / 64);
+        screenWidget = new ScreenWidget();
     }
 
     public JComponent getWidget() {
-        return textArea;
+        return screenWidget;
     }
 
     public Peripheral getScreen() {
         return screen;
     }
 
-    public Peripheral getKeyboard() {
+    public InputPeripheral getKeyboard() {
         return keyboard;
     }
 }
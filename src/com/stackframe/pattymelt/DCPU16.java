@@ -33,6 +33,11 @@ import java.util.EventObject;
 /**
  * An abstraction for the DCPU-16 virtual machine.
  *
+ * Only one thread may execute instructions at a time, and the register
+ * accessors are for use by that thread or while the CPU is stopped. Other
+ * threads which want to watch the registers while the CPU is running should
+ * use snapshot.
+ *
  * @author mcculley
  */
 public interface DCPU16 extends Runnable {
@@ -82,6 +87,28 @@ public interface DCPU16 extends Runnable {
         }
     }
 
+    /**
+     * What the CPU was doing at the end of the most recent batch of
+     * instructions.
+     */
+    public enum State {
+
+        /**
+         * Executing a program.
+         */
+        RUNNING,
+        /**
+         * Stopped on an instruction which jumps to itself, such as SUB PC, 1.
+         * Nothing but a change to the registers or memory from outside will get
+         * it going again.
+         */
+        HALTED,
+        /**
+         * Polling an input peripheral which has nothing to read.
+         */
+        IDLE
+    }
+
     /**
      * Get the program counter
      *
@@ -103,6 +130,20 @@ public interface DCPU16 extends Runnable {
      */
     short O();
 
+    /**
+     * Get the number of cycles executed.
+     *
+     * @return the number of cycles executed since the CPU was created
+     */
+    long cycles();
+
+    /**
+     * Get the number of instructions executed. A skipped instruction counts.
+     *
+     * @return the number of instructions executed since the CPU was created
+     */
+    long instructions();
+
     /**
      * Get a given register
      *
@@ -167,11 +208,90 @@ public interface DCPU16 extends Runnable {
      */
     short J();
 
+    /**
+     * Get a consistent view of the registers without blocking the CPU. While
+     * the CPU is running the snapshot is taken from the end of the most recent
+     * batch of instructions, so it may be a little behind.
+     *
+     * @return a snapshot of the registers
+     */
+    Snapshot snapshot();
+
     /**
      * Step a single instruction.
      */
     void step() throws IllegalOpcodeException;
 
+    /**
+     * Step a number of instructions. This is equivalent to calling step n times
+     * but listeners are only notified once, after the last instruction.
+     *
+     * @param n the number of instructions to step
+     */
+    void step(int n) throws IllegalOpcodeException;
+
+    /**
+     * Run for a number of cycles. Execution stops at the first instruction
+     * boundary at which the cycles have been used up, so it may run over by a
+     * few cycles. Implementations which execute several instructions at a time
+     * may run over by more. Execution also stops early if the CPU halts.
+     *
+     * @param cycles the number of cycles to run for
+     * @return the number of cycles actually executed
+     */
+    long runFor(long cycles) throws IllegalOpcodeException;
+
+    /**
+     * Run until the cycle counter reaches a given value, with the same caveats
+     * as runFor. This also returns early if the CPU halts.
+     *
+     * @param cycle the value of the cycle counter to run until
+     * @return the number of cycles actually executed
+     */
+    long runUntil(long cycle) throws IllegalOpcodeException;
+
+    /**
+     * Get what the CPU was doing at the end of the most recent batch of
+     * instructions. This may be called from any thread.
+     *
+     * @return the state of the CPU
+     */
+    State state();
+
+    /**
+     * Park the calling thread while the CPU is halted or idle. This returns
+     * when input arrives, when wake is called or when the thread is
+     * interrupted, and straight away if the CPU is running. It may also return
+     * early, so callers should run the CPU and check the state again.
+     *
+     * @throws InterruptedException if the thread is interrupted while parked
+     */
+    void awaitWork() throws InterruptedException;
+
+    /**
+     * Wake up a thread parked in awaitWork. This should be called by anything
+     * which changes the state of a halted or idle CPU from outside, such as a
+     * reset or a debugger.
+     */
+    void wake();
+
+    /**
+     * Run until a condition is met or the current thread is interrupted. The
+     * condition is checked after every instruction.
+     *
+     * @param condition the condition to stop at
+     * @return the number of cycles executed
+     */
+    long runUntil(StopCondition condition) throws IllegalOpcodeException;
+
+    /**
+     * Run until the current thread is interrupted. While the CPU is halted or
+     * idle the thread is parked in awaitWork rather than spinning. An
+     * IllegalOpcodeException is rethrown wrapped in a RuntimeException.
+     */
+    @Override
+    void run();
+
     /**
      * Get a buffer that represents the memory.
      *
@@ -184,15 +304,198 @@ public interface DCPU16 extends Runnable {
      *
      * @param peripheral the Peripheral to install
      * @param address the address to mount the memory of the peripheral
+     * @throws IllegalArgumentException if the memory of the peripheral does not
+     * fit in the address space or overlaps an already installed peripheral
      */
     void install(Peripheral peripheral, int address);
 
+    /**
+     * An immutable view of the registers of a CPU at an instruction boundary.
+     */
+    static final class Snapshot {
+
+        private final short[] registers;
+        private final long cycles;
+        private final long instructions;
+        private final boolean skipping;
+
+        /**
+         * Create a Snapshot.
+         *
+         * @param registers the registers in the order A, B, C, X, Y, Z, I, J,
+         * SP, PC, O
+         * @param cycles the number of cycles executed
+         * @param instructions the number of instructions executed
+         * @param skipping true if the next instruction will be skipped
+         */
+        public Snapshot(short[] registers, long cycles, long instructions, boolean skipping) {
+            this.registers = registers.clone();
+            this.cycles = cycles;
+            this.instructions = instructions;
+            this.skipping = skipping;
+        }
+
+        /**
+         * Get a given register
+         *
+         * @param r the register to return
+         * @return the state of the specified register
+         */
+        public short register(Register r) {
+            return registers[r.ordinal()];
+        }
+
+        /**
+         * Get the stack pointer
+         *
+         * @return the state of the stack pointer
+         */
+        public short SP() {
+            return registers[8];
+        }
+
+        /**
+         * Get the program counter
+         *
+         * @return the state of the program counter
+         */
+        public short PC() {
+            return registers[9];
+        }
+
+        /**
+         * Get the overflow bit
+         *
+         * @return the state of the overflow bit
+         */
+        public short O() {
+            return registers[10];
+        }
+
+        /**
+         * Get the number of cycles executed.
+         *
+         * @return the number of cycles executed since the CPU was created
+         */
+        public long cycles() {
+            return cycles;
+        }
+
+        /**
+         * Get the number of instructions executed.
+         *
+         * @return the number of instructions executed since the CPU was
+         * created
+         */
+        public long instructions() {
+            return instructions;
+        }
+
+        /**
+         * Determine if the next instruction will be skipped.
+         *
+         * @return true if the next instruction will be skipped
+         */
+        public boolean skipping() {
+            return skipping;
+        }
+    }
+
+    /**
+     * A condition under which the CPU should stop running.
+     */
+    static abstract class StopCondition {
+
+        /**
+         * Stop when an instruction leaves PC where it was, as with SUB PC, 1,
+         * which is how programs conventionally halt.
+         */
+        public static final StopCondition HALT = new StopCondition() {
+
+            @Override
+            public boolean shouldStop(DCPU16 cpu, short previousPC) {
+                return cpu.PC() == previousPC;
+            }
+        };
+
+        /**
+         * Determine if the CPU should stop.
+         *
+         * @param cpu the CPU that has just executed an instruction
+         * @param previousPC the value of PC before the instruction was executed
+         * @return true if the CPU should stop
+         */
+        public abstract boolean shouldStop(DCPU16 cpu, short previousPC);
+
+        /**
+         * Create a condition which stops when PC reaches an address.
+         *
+         * @param pc the address to stop at
+         * @return a new StopCondition
+         */
+        public static StopCondition pc(final short pc) {
+            return new StopCondition() {
+
+                @Override
+                public boolean shouldStop(DCPU16 cpu, short previousPC) {
+                    return cpu.PC() == pc;
+                }
+            };
+        }
+
+        /**
+         * Create a condition which stops when the cycle counter reaches a
+         * value.
+         *
+         * @param cycle the value of the cycle counter to stop at
+         * @return a new StopCondition
+         */
+        public static StopCondition cycle(final long cycle) {
+            return new StopCondition() {
+
+                @Override
+                public boolean shouldStop(DCPU16 cpu, short previousPC) {
+                    return cpu.cycles() >= cycle;
+                }
+            };
+        }
+
+        /**
+         * Create a condition which stops when any of a set of conditions is
+         * met.
+         *
+         * @param conditions the conditions
+         * @return a new StopCondition
+         */
+        public static StopCondition any(final StopCondition... conditions) {
+            return new StopCondition() {
+
+                @Override
+                public boolean shouldStop(DCPU16 cpu, short previousPC) {
+                    for (StopCondition condition : conditions) {
+                        if (condition.shouldStop(cpu, previousPC)) {
+                            return true;
+                        }
+                    }
+
+                    return false;
+                }
+            };
+        }
+    }
+
     /**
      * An event generated by the CPU.
+     *
+     * A CPU may reuse the same event object for many notifications in order to
+     * avoid allocating on every instruction, so listeners must not hold on to
+     * an event after they return.
      */
     static class CPUEvent extends EventObject {
 
-        public final int addressOfMemoryModification;
+        private static final long serialVersionUID = 1L;
+        private int addressOfMemoryModification;
+        private int lengthOfMemoryModification = 1;
 
         /**
          * Create a general CPUEvent.
@@ -214,6 +517,36 @@ public interface DCPU16 extends Runnable {
             super(source);
             this.addressOfMemoryModification = addressOfMemoryModification;
         }
+
+        /**
+         * Get the address of memory that was modified.
+         *
+         * @return the address of memory that was modified or -1 if this event
+         * is not about a memory modification
+         */
+        public int addressOfMemoryModification() {
+            return addressOfMemoryModification;
+        }
+
+        /**
+         * Get the number of consecutive words, starting at
+         * addressOfMemoryModification, that were modified. This is 1 except
+         * for bulk writes, which are reported with a single event.
+         *
+         * @return the number of words that were modified
+         */
+        public int lengthOfMemoryModification() {
+            return lengthOfMemoryModification;
+        }
+
+        void setAddressOfMemoryModification(int addressOfMemoryModification) {
+            setMemoryModification(addressOfMemoryModification, 1);
+        }
+
+        void setMemoryModification(int address, int length) {
+            this.addressOfMemoryModification = address;
+            this.lengthOfMemoryModification = length;
+        }
     }
 
     /**
@@ -223,14 +556,17 @@ public interface DCPU16 extends Runnable {
     interface CPUEventListener extends EventListener {
 
         /**
-         * Notify that an instruction was executed.
+         * Notify that one or more instructions were executed. When the CPU
+         * executes instructions in batches, listeners are notified once per
+         * batch.
          *
          * @param event the event
          */
         void instructionExecuted(CPUEvent event);
 
         /**
-         * Notify that memory was modified
+         * Notify that memory was modified. A single notification may cover a
+         * range of addresses.
          *
          * @param event the event
          */
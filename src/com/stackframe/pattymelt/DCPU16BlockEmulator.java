@@ -0,0 +1,387 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.util.Arrays;
+
+/**
+ * An implementation of DCPU16 that executes a basic block at a time.
+ *
+ * A basic block is a run of instructions that ends with an instruction that
+ * writes to PC, a JSR or one of the IF instructions. Blocks are discovered the
+ * first time execution reaches them and are then executed as a whole, with the
+ * checks that the emulator would otherwise do on every instruction done once
+ * per block. The operands of each instruction are resolved when the block is
+ * built, so executing it does no decoding, and the cycles it takes are added
+ * up once at the end. Single steps are handled by the underlying emulator.
+ *
+ * @author mcculley
+ */
+public class DCPU16BlockEmulator extends DCPU16Emulator {
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    /*
+     * Limiting the length of a block to well under a page means that a block
+     * can only extend into the page after the one it starts in.
+     */
+    private static final int MAX_BLOCK_LENGTH = 32;
+    /*
+     * An operand is resolved to a mode in the low 4 bits with a value above
+     * it: a register index, an address, a literal or, for OFFSET, a register
+     * index in the next 4 bits with the offset above that. Reading PC gives a
+     * value known when the block is built, so it is a literal when read and
+     * the PC register when written. The modes from PC_VALUE on have their
+     * value in the operand rather than at their location.
+     */
+    private static final int REG = 0;
+    private static final int INDIRECT = 1;
+    private static final int OFFSET = 2;
+    private static final int POP = 3;
+    private static final int PEEK = 4;
+    private static final int PUSH = 5;
+    private static final int MEMORY = 6;
+    private static final int PC_VALUE = 7;
+    private static final int LITERAL_VALUE = 8;
+    /*
+     * Each instruction of a block is resolved into this many ints: the
+     * opcode, with 0 for JSR, the address of the next instruction and the two
+     * operands.
+     */
+    private static final int STRIDE = 4;
+
+    /**
+     * A basic block.
+     */
+    static class Block {
+
+        final int start;
+        final int end;
+        final long[] instructions;
+        final int[] cyclesAfter;
+        final int[] operations;
+        boolean valid = true;
+        int invocations;
+        CompiledBlock compiled;
+
+        private Block(int start, int end, long[] instructions) {
+            this.start = start;
+            this.end = end;
+            this.instructions = instructions;
+            cyclesAfter = new int[instructions.length + 1];
+            operations = new int[instructions.length * STRIDE];
+            int pc = start;
+            for (int i = 0; i < instructions.length; i++) {
+                long instruction = instructions[i];
+                cyclesAfter[i + 1] = cyclesAfter[i] + cycles(instruction);
+                int op = instructionWord(instruction);
+                int j = i * STRIDE;
+                // PC has been moved past the instruction word and any next words used so far when an operand reads it.
+                int read = pc + 1;
+                if ((op & 0xF) == 0) {
+                    int b_op = (op >> 10) & 0x3F;
+                    read += usesNextWord(b_op) ? 1 : 0;
+                    operations[j + 2] = resolve(b_op, nextWord(instruction, 0), read);
+                } else {
+                    operations[j] = op & 0xF;
+                    int dst = (op >> 4) & 0x3F;
+                    read += usesNextWord(dst) ? 1 : 0;
+                    operations[j + 2] = resolve(dst, nextWord(instruction, 0), read);
+                    int b_op = (op >> 10) & 0x3F;
+                    read += usesNextWord(b_op) ? 1 : 0;
+                    operations[j + 3] = resolve(b_op, nextWord(instruction, usesNextWord(dst) ? 1 : 0), read);
+                }
+
+                pc += length(instruction);
+                operations[j + 1] = pc & 0xFFFF;
+            }
+        }
+
+        private static int resolve(int code, short nextWord, int pc) {
+            if (code < 0x08) {
+                return code << 4 | REG;
+            } else if (code < 0x10) {
+                return (code & 7) << 4 | INDIRECT;
+            } else if (code < 0x18) {
+                return (nextWord & 0xFFFF) << 8 | (code & 7) << 4 | OFFSET;
+            }
+
+            switch (code) {
+                case 0x18:
+                    return POP;
+                case 0x19:
+                    return PEEK;
+                case 0x1a:
+                    return PUSH;
+                case 0x1b:
+                    return SP << 4 | REG;
+                case 0x1c:
+                    return (pc & 0xFFFF) << 4 | PC_VALUE;
+                case 0x1d:
+                    return O << 4 | REG;
+                case 0x1e:
+                    return (nextWord & 0xFFFF) << 4 | MEMORY;
+                case 0x1f:
+                    return (nextWord & 0xFFFF) << 4 | LITERAL_VALUE;
+                default:
+                    return (code - 0x20) << 4 | LITERAL_VALUE;
+            }
+        }
+
+        private boolean contains(int address) {
+            if (end > 0xFFFF) {
+                return address >= start || address < (end & 0xFFFF);
+            } else {
+                return address >= start && address < end;
+            }
+        }
+    }
+    /*
+     * Blocks are kept by start address in pages which are allocated the first
+     * time code in them runs. A bit is set for every word covered by a block so
+     * that writes to memory which does not hold code can be dismissed quickly.
+     * The bits are not cleared when a block is discarded, which only costs a
+     * look at the blocks in the neighborhood on a later write.
+     */
+    private final Block[][] blocks = new Block[0x10000 >> PAGE_BITS][];
+    private final long[] covered = new long[0x10000 / 64];
+    private final long[] scratch = new long[MAX_BLOCK_LENGTH];
+
+    private static boolean endsBlock(long instruction) {
+        int op = instructionWord(instruction);
+        int opcode = op & 0xF;
+        if (opcode == 0) {
+            // JSR and anything we don't understand.
+            return true;
+        }
+
+        int dst = (op >> 4) & 0x3F;
+        return dst == 0x1c || opcode >= Opcode.IFE.ordinal();
+    }
+
+    private static boolean isLegal(long instruction) {
+        int op = instructionWord(instruction);
+        return (op & 0xF) != 0 || ((op >> 4) & 0x3F) == 0x01;
+    }
+
+    private Block findBlock(int pc) {
+        Block[] page = blocks[pc >> PAGE_BITS];
+        if (page != null) {
+            Block block = page[pc & PAGE_MASK];
+            if (block != null) {
+                return block;
+            }
+        }
+
+        int length = 0;
+        int address = pc;
+        while (length < MAX_BLOCK_LENGTH) {
+            long instruction = decode(address & 0xFFFF);
+            int instructionLength = length(instruction);
+            if (!isLegal(instruction) || !inRAM(address & 0xFFFF) || !inRAM((address + instructionLength - 1) & 0xFFFF)) {
+                break;
+            }
+
+            scratch[length++] = instruction;
+            address += instructionLength;
+            if (endsBlock(instruction)) {
+                break;
+            }
+        }
+
+        if (length == 0) {
+            return null;
+        }
+
+        long[] instructions = new long[length];
+        System.arraycopy(scratch, 0, instructions, 0, length);
+        Block block = new Block(pc, address, instructions);
+        if (page == null) {
+            page = new Block[PAGE_SIZE];
+            blocks[pc >> PAGE_BITS] = page;
+        }
+
+        page[pc & PAGE_MASK] = block;
+        for (int i = pc; i < address; i++) {
+            int word = i & 0xFFFF;
+            covered[word >> 6] |= 1L << word;
+        }
+
+        return block;
+    }
+
+    @Override
+    void codeModified(int address) {
+        if ((covered[address >> 6] & (1L << address)) == 0) {
+            return;
+        }
+
+        // A block containing this address must start in this page or the one before it.
+        int page = address >> PAGE_BITS;
+        discardBlocks(page, address);
+        discardBlocks((page - 1) & ((0x10000 >> PAGE_BITS) - 1), address);
+    }
+
+    @Override
+    void allCodeModified() {
+        for (Block[] page : blocks) {
+            if (page != null) {
+                for (Block block : page) {
+                    if (block != null) {
+                        block.valid = false;
+                    }
+                }
+            }
+        }
+
+        Arrays.fill(blocks, null);
+        Arrays.fill(covered, 0);
+    }
+
+    private void discardBlocks(int page, int address) {
+        Block[] b = blocks[page];
+        if (b == null) {
+            return;
+        }
+
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            Block block = b[i];
+            if (block != null && block.contains(address)) {
+                block.valid = false;
+                b[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Execute the basic block at PC.
+     *
+     * @return the number of instructions executed
+     * @throws IllegalOpcodeException if an illegal instruction was encountered
+     */
+    int stepBlock() throws IllegalOpcodeException {
+        int executed = advance();
+        endBatch();
+        return executed;
+    }
+
+    @Override
+    int advance() throws IllegalOpcodeException {
+        if (skipping()) {
+            return super.advance();
+        }
+
+        Block block = findBlock(PC() & 0xFFFF);
+        if (block == null) {
+            // PC is in peripheral memory or at an illegal instruction. Let the emulator deal with it.
+            return super.advance();
+        }
+
+        int executed = executeBlock(block);
+        addInstructions(executed);
+        return executed;
+    }
+
+    /**
+     * Execute a basic block. PC must be the start of the block.
+     *
+     * @param block the block to execute
+     * @return the number of instructions executed
+     * @throws IllegalOpcodeException if an illegal instruction was encountered
+     */
+    int executeBlock(Block block) throws IllegalOpcodeException {
+        short[] registers = registers();
+        int[] operations = block.operations;
+        int length = block.instructions.length;
+        for (int i = 0; i < length; i++) {
+            int j = i * STRIDE;
+            registers[PC] = (short) operations[j + 1];
+            int aOperand = operations[j + 2];
+            int aa = location(aOperand, registers);
+            int a = (aOperand & 0xF) >= PC_VALUE ? aOperand >>> 4 : load(aa);
+            int op = operations[j];
+            if (op == 0) {
+                // JSR
+                int sp = (registers[SP] - 1) & 0xFFFF;
+                registers[SP] = (short) sp;
+                memory().put(sp, registers[PC]);
+                registers[PC] = (short) a;
+            } else {
+                int bOperand = operations[j + 3];
+                int ba = location(bOperand, registers);
+                operate(op, aa, a, (bOperand & 0xF) >= PC_VALUE ? bOperand >>> 4 : load(ba));
+            }
+
+            if (!block.valid) {
+                // The block modified itself. Whatever it changed will be decoded afresh.
+                addCycles(block.cyclesAfter[i + 1]);
+                return i + 1;
+            }
+        }
+
+        addCycles(block.cyclesAfter[length]);
+        return length;
+    }
+
+    /**
+     * Find the location of a resolved operand, popping or pushing if need be.
+     *
+     * @param operand the resolved operand
+     * @param registers the live registers
+     * @return the location of the operand, as used by load and operate
+     */
+    private static int location(int operand, short[] registers) {
+        switch (operand & 0xF) {
+            case REG:
+                return REGISTER + (operand >>> 4);
+            case INDIRECT:
+                return registers[operand >>> 4] & 0xFFFF;
+            case OFFSET:
+                return (registers[(operand >>> 4) & 0xF] + (operand >>> 8)) & 0xFFFF;
+            case POP: {
+                int sp = registers[SP] & 0xFFFF;
+                registers[SP] = (short) (sp + 1);
+                return sp;
+            }
+            case PEEK:
+                return registers[SP] & 0xFFFF;
+            case PUSH: {
+                int sp = (registers[SP] - 1) & 0xFFFF;
+                registers[SP] = (short) sp;
+                return sp;
+            }
+            case MEMORY:
+                return operand >>> 4;
+            case PC_VALUE:
+                return REGISTER + PC;
+            default:
+                return LITERAL;
+        }
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import com.stackframe.pattymelt.DCPU16.Opcode;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translates basic blocks into JVM classes so that HotSpot can compile DCPU-16
+ * code directly.
+ *
+ * Each block becomes a subclass of CompiledBlock whose execute method loads
+ * the registers into local variables, runs the instructions of the block with
+ * all of the decoding done at translation time and stores the registers back
+ * on the way out. Memory is accessed through the methods of CompiledBlock so
+ * that peripherals and invalidation behave exactly as in the emulator. The
+ * classes are generated with version 49 of the class file format, which does
+ * not require stack map frames, and each is defined by its own class loader so
+ * that it can be unloaded once the block is discarded.
+ *
+ * @author mcculley
+ */
+class DCPU16Compiler {
+
+    // The JVM instructions used in generated code.
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int SALOAD = 0x35;
+    private static final int ISTORE = 0x36;
+    private static final int SASTORE = 0x56;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int IDIV = 0x6c;
+    private static final int IREM = 0x70;
+    private static final int ISHL = 0x78;
+    private static final int ISHR = 0x7a;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    // The local variables of the generated execute method.
+    private static final int REGISTERS = 1;
+    private static final int FIRST_REGISTER = 2;
+    private static final int SP = FIRST_REGISTER + 8;
+    private static final int O = SP + 1;
+    private static final int ADDRESS_A = O + 1;
+    private static final int ADDRESS_B = ADDRESS_A + 1;
+    private static final int VALUE_A = ADDRESS_B + 1;
+    private static final int VALUE_B = VALUE_A + 1;
+    private static final int RESULT = VALUE_B + 1;
+    private static final int EXIT_PC = RESULT + 1;
+    private static final int EXIT_COUNT = EXIT_PC + 1;
+    private static final int NUM_LOCALS = EXIT_COUNT + 1;
+    // The positions of registers in the array handed to execute.
+    private static final int SP_INDEX = 8;
+    private static final int PC_INDEX = 9;
+    private static final int O_INDEX = 10;
+    private static final String SUPERCLASS = "com/stackframe/pattymelt/CompiledBlock";
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    /**
+     * The constant pool of a class being generated.
+     */
+    private static class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> indices = new HashMap<String, Integer>();
+        private int count = 1;
+
+        private int utf8(String s) throws IOException {
+            Integer index = indices.get("U" + s);
+            if (index == null) {
+                out.writeByte(1);
+                out.writeUTF(s);
+                index = count++;
+                indices.put("U" + s, index);
+            }
+
+            return index;
+        }
+
+        private int integer(int value) throws IOException {
+            Integer index = indices.get("I" + value);
+            if (index == null) {
+                out.writeByte(3);
+                out.writeInt(value);
+                index = count++;
+                indices.put("I" + value, index);
+            }
+
+            return index;
+        }
+
+        private int classRef(String name) throws IOException {
+            int nameIndex = utf8(name);
+            Integer index = indices.get("C" + name);
+            if (index == null) {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+                index = count++;
+                indices.put("C" + name, index);
+            }
+
+            return index;
+        }
+
+        private int methodRef(String owner, String name, String descriptor) throws IOException {
+            int classIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            String key = owner + "." + name + descriptor;
+            Integer nameAndTypeIndex = indices.get("N" + name + descriptor);
+            if (nameAndTypeIndex == null) {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+                nameAndTypeIndex = count++;
+                indices.put("N" + name + descriptor, nameAndTypeIndex);
+            }
+
+            Integer index = indices.get("M" + key);
+            if (index == null) {
+                out.writeByte(10);
+                out.writeShort(classIndex);
+                out.writeShort(nameAndTypeIndex);
+                index = count++;
+                indices.put("M" + key, index);
+            }
+
+            return index;
+        }
+    }
+
+    /**
+     * A position in generated code which branches refer to.
+     */
+    private static class Label {
+
+        private int position = -1;
+        private final List<int[]> branches = new ArrayList<int[]>();
+    }
+
+    /**
+     * The bytecode of a method being generated.
+     */
+    private static class Code {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<Label>();
+
+        private void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        private void u1(int value) {
+            bytes.write(value);
+        }
+
+        private void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        private void branch(int opcode, Label label) {
+            label.branches.add(new int[]{bytes.size()});
+            if (!labels.contains(label)) {
+                labels.add(label);
+            }
+
+            op(opcode);
+            u2(0);
+        }
+
+        private void mark(Label label) {
+            label.position = bytes.size();
+        }
+
+        private byte[] toByteArray() {
+            byte[] b = bytes.toByteArray();
+            for (Label label : labels) {
+                for (int[] branch : label.branches) {
+                    int offset = label.position - branch[0];
+                    b[branch[0] + 1] = (byte) (offset >> 8);
+                    b[branch[0] + 2] = (byte) offset;
+                }
+            }
+
+            return b;
+        }
+    }
+
+    /**
+     * A class loader which defines a single generated class.
+     */
+    private static class BlockClassLoader extends ClassLoader {
+
+        private BlockClassLoader() {
+            super(CompiledBlock.class.getClassLoader());
+        }
+
+        private Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    /**
+     * The ways in which an operand can be accessed once it has been resolved.
+     */
+    private enum Kind {
+
+        REGISTER, MEMORY, PC, LITERAL
+    }
+    private final ConstantPool pool = new ConstantPool();
+    private final Code code = new Code();
+    private final String className;
+    private int nextPC;
+
+    private DCPU16Compiler(String className) {
+        this.className = className;
+    }
+
+    /**
+     * Compile a basic block.
+     *
+     * @param cpu the emulator which is executing the block
+     * @param block the block to compile
+     * @return an instance of the generated class
+     * @throws Exception if the class could not be generated or loaded
+     */
+    static CompiledBlock compile(DCPU16Emulator cpu, DCPU16BlockEmulator.Block block) throws Exception {
+        String className = String.format("com/stackframe/pattymelt/jit/Block%04X_%d", block.start, classCount.getAndIncrement());
+
+        byte[] classFile = new DCPU16Compiler(className).generate(block);
+        Class<?> c = new BlockClassLoader().define(className.replace('/', '.'), classFile);
+        CompiledBlock compiled = (CompiledBlock) c.getConstructor().newInstance();
+        compiled.init(cpu, block);
+        return compiled;
+    }
+
+    private void push(int value) throws IOException {
+        if (value >= -1 && value <= 5) {
+            code.op(0x03 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.op(BIPUSH);
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.op(SIPUSH);
+            code.u2(value);
+        } else {
+            code.op(LDC_W);
+            code.u2(pool.integer(value));
+        }
+    }
+
+    private void load(int local) {
+        code.op(ILOAD);
+        code.u1(local);
+    }
+
+    private void store(int local) {
+        code.op(ISTORE);
+        code.u1(local);
+    }
+
+    private void invoke(String name, String descriptor) throws IOException {
+        code.op(INVOKEVIRTUAL);
+        code.u2(pool.methodRef(className, name, descriptor));
+    }
+
+    /**
+     * Generate code which keeps the top of the stack in the range of a word.
+     */
+    private void mask() throws IOException {
+        push(0xFFFF);
+        code.op(IAND);
+    }
+
+    /**
+     * Generate the code for the side effects of an operand and determine how
+     * its value is accessed. This mirrors DCPU16Emulator.dcpu_opr.
+     *
+     * @param operand the operand code
+     * @param nextWord the next word used by the operand, if any
+     * @param address the local to hold the address of a memory operand
+     * @param local an array whose first element is set to the local or constant
+     * which holds the operand
+     * @return the kind of the operand
+     */
+    private Kind resolve(int operand, short nextWord, int address, int[] local) throws IOException {
+        if (operand < 0x08) {
+            local[0] = FIRST_REGISTER + operand;
+            return Kind.REGISTER;
+        } else if (operand < 0x10) {
+            load(FIRST_REGISTER + (operand & 7));
+            store(address);
+            local[0] = address;
+            return Kind.MEMORY;
+        } else if (operand < 0x18) {
+            nextPC++;
+            load(FIRST_REGISTER + (operand & 7));
+            push(nextWord & 0xFFFF);
+            code.op(IADD);
+            mask();
+            store(address);
+            local[0] = address;
+            return Kind.MEMORY;
+        }
+
+        switch (operand) {
+            case 0x18:
+                load(SP);
+                store(address);
+                load(SP);
+                push(1);
+                code.op(IADD);
+                mask();
+                store(SP);
+                local[0] = address;
+                return Kind.MEMORY;
+            case 0x19:
+                load(SP);
+                store(address);
+                local[0] = address;
+                return Kind.MEMORY;
+            case 0x1a:
+                load(SP);
+                push(1);
+                code.op(ISUB);
+                mask();
+                code.op(DUP);
+                store(SP);
+                store(address);
+                local[0] = address;
+                return Kind.MEMORY;
+            case 0x1b:
+                local[0] = SP;
+                return Kind.REGISTER;
+            case 0x1c:
+                return Kind.PC;
+            case 0x1d:
+                local[0] = O;
+                return Kind.REGISTER;
+            case 0x1e:
+                nextPC++;
+                push(nextWord & 0xFFFF);
+                store(address);
+                local[0] = address;
+                return Kind.MEMORY;
+            case 0x1f:
+                nextPC++;
+                local[0] = nextWord & 0xFFFF;
+                return Kind.LITERAL;
+            default:
+                local[0] = operand & 0x1F;
+                return Kind.LITERAL;
+        }
+    }
+
+    /**
+     * Generate the code to push the value of a resolved operand.
+     */
+    private void value(Kind kind, int local) throws IOException {
+        switch (kind) {
+            case REGISTER:
+                load(local);
+                break;
+            case MEMORY:
+                code.op(ALOAD_0);
+                load(local);
+                invoke("read", "(I)I");
+                break;
+            case PC:
+                push(nextPC & 0xFFFF);
+                break;
+            case LITERAL:
+                push(local);
+                break;
+        }
+    }
+
+    /**
+     * Generate the code to leave the block if the last write modified it.
+     *
+     * @param executed the number of instructions executed at this point
+     * @param exit the label of the exit code
+     */
+    private void exitIfModified(int executed, Label exit) throws IOException {
+        Label valid = new Label();
+        code.branch(IFNE, valid);
+        push(nextPC & 0xFFFF);
+        store(EXIT_PC);
+        push(executed);
+        store(EXIT_COUNT);
+        code.branch(GOTO, exit);
+        code.mark(valid);
+    }
+
+    /**
+     * Generate the code to compute RESULT from VALUE_A and VALUE_B.
+     */
+    private void arithmetic(int opcode) throws IOException {
+        if (opcode == Opcode.SET.ordinal()) {
+            load(VALUE_B);
+        } else if (opcode == Opcode.DIV.ordinal() || opcode == Opcode.MOD.ordinal()) {
+            Label nonzero = new Label();
+            Label done = new Label();
+            load(VALUE_B);
+            code.branch(IFNE, nonzero);
+            push(0);
+            code.branch(GOTO, done);
+            code.mark(nonzero);
+            load(VALUE_A);
+            load(VALUE_B);
+            code.op(opcode == Opcode.DIV.ordinal() ? IDIV : IREM);
+            code.mark(done);
+        } else {
+            load(VALUE_A);
+            load(VALUE_B);
+            switch (DCPU16Emulator.OPCODES[opcode]) {
+                case ADD:
+                    code.op(IADD);
+                    break;
+                case SUB:
+                    code.op(ISUB);
+                    break;
+                case MUL:
+                    code.op(IMUL);
+                    break;
+                case SHL:
+                    code.op(ISHL);
+                    break;
+                case SHR:
+                    code.op(ISHR);
+                    break;
+                case AND:
+                    code.op(IAND);
+                    break;
+                case BOR:
+                    code.op(IOR);
+                    break;
+                case XOR:
+                    code.op(IXOR);
+                    break;
+                default:
+                    throw new AssertionError("unexpected opcode " + opcode);
+            }
+        }
+
+        store(RESULT);
+    }
+
+    private byte[] generateExecute(DCPU16BlockEmulator.Block block) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            code.op(ALOAD_1);
+            push(i);
+            code.op(SALOAD);
+            mask();
+            store(FIRST_REGISTER + i);
+        }
+
+        code.op(ALOAD_1);
+        push(SP_INDEX);
+        code.op(SALOAD);
+        mask();
+        store(SP);
+        code.op(ALOAD_1);
+        push(O_INDEX);
+        code.op(SALOAD);
+        mask();
+        store(O);
+
+        Label exit = new Label();
+        int[] local = new int[1];
+        int pc = block.start;
+        boolean wrotePC = false;
+        long[] instructions = block.instructions;
+        for (int i = 0; i < instructions.length; i++) {
+            long instruction = instructions[i];
+            int op = DCPU16Emulator.instructionWord(instruction);
+            int opcode = op & 0xF;
+            nextPC = pc + 1;
+            if (opcode == 0) {
+                // JSR, the only non-basic instruction which makes it into a block.
+                Kind kind = resolve((op >> 10) & 0x3F, DCPU16Emulator.nextWord(instruction, 0), ADDRESS_B, local);
+                value(kind, local[0]);
+                store(EXIT_PC);
+                load(SP);
+                push(1);
+                code.op(ISUB);
+                mask();
+                store(SP);
+                code.op(ALOAD_0);
+                load(SP);
+                push(nextPC & 0xFFFF);
+                invoke("write", "(II)Z");
+                code.op(POP);
+                wrotePC = true;
+            } else {
+                int dst = (op >> 4) & 0x3F;
+                Kind kindA = resolve(dst, DCPU16Emulator.nextWord(instruction, 0), ADDRESS_A, local);
+                int localA = local[0];
+                value(kindA, localA);
+                store(VALUE_A);
+                int b = (op >> 10) & 0x3F;
+                Kind kindB = resolve(b, DCPU16Emulator.nextWord(instruction, DCPU16Emulator.usesNextWord(dst) ? 1 : 0), ADDRESS_B, local);
+                value(kindB, local[0]);
+                store(VALUE_B);
+                if (opcode >= Opcode.IFE.ordinal()) {
+                    code.op(ALOAD_0);
+                    push(opcode);
+                    load(VALUE_A);
+                    load(VALUE_B);
+                    invoke("test", "(III)V");
+                } else {
+                    arithmetic(opcode);
+                    switch (DCPU16Emulator.OPCODES[opcode]) {
+                        case ADD:
+                        case SUB:
+                        case MUL:
+                        case DIV:
+                        case SHL:
+                        case SHR:
+                            load(RESULT);
+                            push(16);
+                            code.op(ISHR);
+                            mask();
+                            store(O);
+                    }
+
+                    if (dst < 0x1f) {
+                        switch (kindA) {
+                            case REGISTER:
+                                load(RESULT);
+                                mask();
+                                store(localA);
+                                break;
+                            case PC:
+                                load(RESULT);
+                                mask();
+                                store(EXIT_PC);
+                                wrotePC = true;
+                                break;
+                            case MEMORY:
+                                code.op(ALOAD_0);
+                                load(localA);
+                                load(RESULT);
+                                invoke("write", "(II)Z");
+                                exitIfModified(i + 1, exit);
+                                break;
+                        }
+                    }
+                }
+            }
+
+            pc = nextPC;
+        }
+
+        if (!wrotePC) {
+            push(pc & 0xFFFF);
+            store(EXIT_PC);
+        }
+
+        push(instructions.length);
+        store(EXIT_COUNT);
+
+        code.mark(exit);
+        for (int i = 0; i < 8; i++) {
+            code.op(ALOAD_1);
+            push(i);
+            load(FIRST_REGISTER + i);
+            code.op(SASTORE);
+        }
+
+        code.op(ALOAD_1);
+        push(SP_INDEX);
+        load(SP);
+        code.op(SASTORE);
+        code.op(ALOAD_1);
+        push(PC_INDEX);
+        load(EXIT_PC);
+        code.op(SASTORE);
+        code.op(ALOAD_1);
+        push(O_INDEX);
+        load(O);
+        code.op(SASTORE);
+        load(EXIT_COUNT);
+        code.op(IRETURN);
+        return code.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, ConstantPool pool, String name, String descriptor, int maxStack, int maxLocals,
+            byte[] code) throws IOException {
+        out.writeShort(0x0001); // ACC_PUBLIC
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(pool.utf8("Code"));
+        out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private byte[] generate(DCPU16BlockEmulator.Block block) throws IOException {
+        byte[] execute = generateExecute(block);
+        byte[] constructor = new byte[]{
+            (byte) ALOAD_0, (byte) INVOKESPECIAL, 0, 0, (byte) RETURN
+        };
+        int superConstructor = pool.methodRef(SUPERCLASS, "<init>", "()V");
+        constructor[2] = (byte) (superConstructor >> 8);
+        constructor[3] = (byte) superConstructor;
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef(SUPERCLASS);
+
+        ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        DataOutputStream methodsOut = new DataOutputStream(methods);
+        writeMethod(methodsOut, pool, "<init>", "()V", 1, 1, constructor);
+        writeMethod(methodsOut, pool, "execute", "([S)I", 8, NUM_LOCALS, execute);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(pool.count);
+        out.write(pool.bytes.toByteArray());
+        out.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(2);
+        methodsOut.flush();
+        out.write(methods.toByteArray());
+        out.writeShort(0); // attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
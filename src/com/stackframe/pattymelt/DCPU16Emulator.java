@@ -27,11 +27,11 @@
  */
 package com.stackframe.pattymelt;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * An implementation of DPCU16 that is a simple emulator.
@@ -42,67 +42,466 @@ import java.util.Map.Entry;
  */
 public class DCPU16Emulator implements DCPU16 {
 
-    // FIXME: Need to count cycles.
     private boolean SKIP;
-    private final short[] memory = new short[0x1002B];
+    private long cycles;
+    private long instructions;
     /*
-     * The registers and literals are mapped in above reachable RAM. This let's
-     * us use Brian Swetland's neat trick to keep dcpu_opr very general and
-     * always just return a pointer. This may change in order to improve
-     * performance.
-     */
-    private final int A = 0x10000;
-    private final int B = 0x10001;
-    private final int C = 0x10002;
-    private final int X = 0x10003;
-    private final int Y = 0x10004;
-    private final int Z = 0x10005;
-    private final int I = 0x10006;
-    private final int J = 0x10007;
-    private final int SP = 0x10008;
-    private final int PC = 0x10009;
-    private final int O = 0x1000A;
-    private final Map<Integer, Peripheral> peripherals = new HashMap<Integer, Peripheral>();
-    private final List<CPUEventListener> listeners = new ArrayList<CPUEventListener>();
-
-    private Peripheral findPeripheral(int address, int mountPoint[]) {
-        for (Entry<Integer, Peripheral> entry : peripherals.entrySet()) {
-            Memory m = entry.getValue().memory();
-            int start = entry.getKey();
-            if (address >= start && address < start + m.size()) {
-                mountPoint[0] = entry.getKey();
-                return entry.getValue();
+     * RAM is allocated a page at a time as it is written to, so a CPU running
+     * a small program does not carry 128K of zeros around.
+     */
+    private final PagedMemory ram = new PagedMemory(0x10000);
+    /*
+     * The registers are kept in a small array of their own, indexed in the
+     * order A, B, C, X, Y, Z, I, J, SP, PC, O.
+     */
+    private final short[] registers = new short[NUM_REGISTERS];
+    private static final int A = 0;
+    private static final int Y = 4;
+    static final int SP = 8;
+    static final int PC = 9;
+    static final int O = 10;
+    static final int NUM_REGISTERS = 11;
+    /*
+     * dcpu_opr gives the location of an operand as an int. RAM addresses are
+     * 0 to 0xFFFF, a register is REGISTER plus its index and an operand which
+     * is a literal, and so cannot be written to, is LITERAL.
+     */
+    static final int REGISTER = 0x10000;
+    static final int LITERAL = -1;
+    static final Opcode[] OPCODES = Opcode.values();
+    /*
+     * The state written by saveState starts with this, "DC16" in ASCII,
+     * followed by STATE_VERSION. Reading the magic number back in the wrong
+     * byte order gives something else, so that is caught too.
+     */
+    private static final int STATE_MAGIC = 0x44433136;
+    private static final int STATE_VERSION = 1;
+    /*
+     * The number of times the batched execution methods call advance for each
+     * time they publish the registers and notify listeners.
+     */
+    static final int BATCH_SIZE = 1024;
+    // The number of cycles run executes on a virtual thread before it yields.
+    static final long YIELD_CYCLES = 10000;
+    /*
+     * The number of cycles taken by each opcode, not counting operands. The
+     * non-basic entry is for JSR, the only non-basic instruction. The IF
+     * instructions take another cycle when the test fails, which is charged
+     * when the instruction after them is skipped.
+     */
+    private static final int[] OPCODE_CYCLES = {2, 1, 2, 2, 2, 3, 3, 2, 2, 1, 1, 1, 2, 2, 2, 2};
+    /*
+     * Listeners are kept in an array which is replaced whenever the set of
+     * listeners changes so that notifying them does not need an iterator or a
+     * lock. The events handed to them are reused for the same reason.
+     */
+    private volatile CPUEventListener[] listeners = new CPUEventListener[0];
+    private final CPUEvent instructionEvent = new CPUEvent(this);
+    private final CPUEvent memoryEvent = new CPUEvent(this, -1);
+    /*
+     * Only the thread running the CPU touches the registers. They are
+     * published for other threads at the end of each batch of instructions
+     * with a seqlock, packed four to a long. The sequence number is odd while
+     * the published state is being updated, and a reader retries if it was
+     * odd or changed while it was reading. This never blocks the CPU and never
+     * allocates.
+     */
+    private volatile int sequence;
+    private volatile long published0;
+    private volatile long published1;
+    private volatile long published2;
+    private volatile long publishedCycles;
+    private volatile long publishedInstructions;
+    /*
+     * The CPU has halted when the last instruction left PC where it was, and
+     * is idle when an input peripheral says it has been polled with nothing to
+     * read over and over without the program making any progress in between.
+     * Either way there is no point in running it until something changes, so
+     * a thread running it can park in awaitWork. The state is worked out at
+     * the end of each batch.
+     */
+    private boolean halted;
+    private volatile State state = State.RUNNING;
+    private volatile InputPeripheral[] inputs = new InputPeripheral[0];
+    /*
+     * The registers as they were the last time the program read from an
+     * input peripheral. A program which reads again with the registers and
+     * memory just as they were is going round a loop which can only end when
+     * input arrives. If anything has changed it is getting on with something
+     * else, and the input peripherals are told to forget the empty reads so
+     * far. Compiled blocks only store the registers when they exit, so for
+     * them this is the state on entry to the block, which does just as well.
+     */
+    private final short[] polledRegisters = new short[NUM_REGISTERS];
+    private volatile Thread waiter;
+    private volatile boolean woken;
+    /*
+     * Peripherals are found through a table indexed by page. A page with no
+     * peripheral mounted in it is null, so plain RAM accesses never have to
+     * look any further than that. A page with peripherals mounted in it holds
+     * the (usually single) mounts which overlap it.
+     */
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private final Mount[][] mounts = new Mount[0x10000 >> PAGE_BITS][];
+
+    /**
+     * A peripheral mounted at an address.
+     */
+    private static class Mount {
+
+        private final Peripheral peripheral;
+        private final Memory memory;
+        private final boolean input;
+        private final int start, end;
+
+        private Mount(Peripheral peripheral, int start) {
+            this.peripheral = peripheral;
+            this.memory = peripheral.memory();
+            this.input = peripheral instanceof InputPeripheral;
+            this.start = start;
+            this.end = start + memory.size();
+        }
+
+        private boolean contains(int address) {
+            return address >= start && address < end;
+        }
+    }
+
+    private Mount findMount(int address) {
+        for (Mount mount : mounts[address >> PAGE_BITS]) {
+            if (mount.contains(address)) {
+                return mount;
             }
         }
 
         return null;
     }
-    private final Memory memoryManager = new Memory() {
+    /*
+     * Instructions are decoded once and kept in pages which are allocated the
+     * first time code in them runs. A decoded instruction is packed into a
+     * long with the instruction word in the low 16 bits, the length of the
+     * instruction in words above that and the words following the instruction
+     * word in the upper 32 bits. Zero means not yet decoded. Writing to memory
+     * discards every decoded instruction which could include the word written,
+     * so self-modifying code still works. Instructions which live in peripheral
+     * memory are decoded every time they are executed.
+     */
+    private final long[][] decoded = new long[0x10000 >> PAGE_BITS][];
+
+    static int instructionWord(long instruction) {
+        return (int) instruction & 0xFFFF;
+    }
+
+    static int length(long instruction) {
+        return (int) (instruction >>> 16) & 0x3;
+    }
+
+    static short nextWord(long instruction, int n) {
+        return (short) (instruction >>> (32 + n * 16));
+    }
+
+    /**
+     * Get the number of cycles a decoded instruction takes to execute.
+     *
+     * @param instruction the decoded instruction
+     * @return the number of cycles
+     */
+    static int cycles(long instruction) {
+        // Each operand which reads the next word takes a cycle to do so.
+        return OPCODE_CYCLES[instructionWord(instruction) & 0xF] + length(instruction) - 1;
+    }
+
+    static boolean usesNextWord(int code) {
+        return (code >= 0x10 && code < 0x18) || code == 0x1e || code == 0x1f;
+    }
+
+    /**
+     * Decode the instruction at an address.
+     *
+     * @param pc the address of the instruction
+     * @return the decoded instruction
+     */
+    long decode(int pc) {
+        long[] page = decoded[pc >> PAGE_BITS];
+        if (page != null) {
+            long instruction = page[pc & PAGE_MASK];
+            if (instruction != 0) {
+                return instruction;
+            }
+        }
+
+        int op = memoryManager.get(pc) & 0xFFFF;
+        long instruction = op;
+        int length = 1;
+        if ((op & 0xF) != 0 && usesNextWord((op >> 4) & 0x3F)) {
+            instruction |= (long) (memoryManager.get((pc + length) & 0xFFFF) & 0xFFFF) << (16 + length * 16);
+            length++;
+        }
+
+        if (usesNextWord((op >> 10) & 0x3F)) {
+            instruction |= (long) (memoryManager.get((pc + length) & 0xFFFF) & 0xFFFF) << (16 + length * 16);
+            length++;
+        }
+
+        instruction |= (long) length << 16;
+
+        for (int i = 0; i < length; i++) {
+            if (!inRAM((pc + i) & 0xFFFF)) {
+                return instruction;
+            }
+        }
+
+        if (page == null) {
+            page = new long[PAGE_SIZE];
+            decoded[pc >> PAGE_BITS] = page;
+        }
+
+        page[pc & PAGE_MASK] = instruction;
+        return instruction;
+    }
+
+    /**
+     * Determine if an address is backed by RAM rather than by a peripheral.
+     *
+     * @param address the address
+     * @return true if no peripheral is mounted in the page containing address
+     */
+    boolean inRAM(int address) {
+        return mounts[address >> PAGE_BITS] == null;
+    }
+
+    /**
+     * Notify that a word of RAM has been written. Subclasses which keep their
+     * own representation of the code in memory use this to discard it.
+     *
+     * @param address the address of the word
+     */
+    void codeModified(int address) {
+    }
+
+    /**
+     * Notify that all of RAM has been replaced at once, as by loadImage or
+     * restoreState. This is called instead of codeModified for every word.
+     */
+    void allCodeModified() {
+    }
+
+    /**
+     * Discard everything decoded from RAM.
+     */
+    private void ramReplaced() {
+        Arrays.fill(decoded, null);
+        allCodeModified();
+    }
+
+    /**
+     * Discard decoded instructions which include a given word.
+     *
+     * @param address the address of the word
+     */
+    private void invalidateDecoded(int address) {
+        // An instruction is at most three words long, so it can only include this word if it starts up to two words before it.
+        for (int i = 0; i < 3; i++) {
+            int pc = (address - i) & 0xFFFF;
+            long[] page = decoded[pc >> PAGE_BITS];
+            if (page != null) {
+                page[pc & PAGE_MASK] = 0;
+            }
+        }
+    }
+
+    /**
+     * Find where the run of RAM starting at an address ends.
+     *
+     * @param address an address which is not covered by a peripheral
+     * @param end the address to stop looking at
+     * @return the address of the first peripheral word after address, or end
+     */
+    private int endOfRAM(int address, int end) {
+        for (int page = address >> PAGE_BITS; page <= (end - 1) >> PAGE_BITS; page++) {
+            Mount[] m = mounts[page];
+            if (m != null) {
+                // The first page with a peripheral after address has the nearest one.
+                int next = end;
+                for (Mount mount : m) {
+                    if (mount.start >= address && mount.start < next) {
+                        next = mount.start;
+                    }
+                }
+
+                if (next < end) {
+                    return next;
+                }
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Find the peripheral covering an address.
+     *
+     * @param address the address
+     * @return the mount covering address or null if it is RAM
+     */
+    private Mount mountAt(int address) {
+        return mounts[address >> PAGE_BITS] != null ? findMount(address) : null;
+    }
+
+    /**
+     * Discard anything decoded from a block of RAM which has been written.
+     *
+     * @param start the address of the first word written
+     * @param end the address after the last word written
+     */
+    private void ramModified(int start, int end) {
+        // An instruction is at most three words long, so those starting up to two words before the block are stale too.
+        for (int i = start - 2; i < end; i++) {
+            int pc = i & 0xFFFF;
+            long[] page = decoded[pc >> PAGE_BITS];
+            if (page != null) {
+                page[pc & PAGE_MASK] = 0;
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            codeModified(i);
+        }
+    }
+
+    /*
+     * The block operations are split where peripherals start and end, so that
+     * runs of RAM are moved with System.arraycopy and each peripheral gets a
+     * single block operation of its own. Listeners are told about a modified
+     * block with a single event.
+     */
+    private final Memory memoryManager = new AbstractMemory() {
 
         @Override
         public short get(int address) {
-            int[] mountPoint = new int[1];
-            Peripheral peripheral = findPeripheral(address, mountPoint);
-            if (peripheral != null) {
-                return peripheral.memory().get(address - mountPoint[0]);
-            } else {
-                return memory[address];
+            if (mounts[address >> PAGE_BITS] != null) {
+                Mount mount = findMount(address);
+                if (mount != null) {
+                    if (mount.input) {
+                        polled();
+                    }
+
+                    return mount.memory.get(address - mount.start);
+                }
             }
+
+            return ram.get(address);
         }
 
         @Override
         public void put(int address, short value) {
-            int[] mountPoint = new int[1];
-            Peripheral peripheral = findPeripheral(address, mountPoint);
-            if (peripheral != null) {
-                peripheral.memory().put(address - mountPoint[0], value);
+            Mount mount = mounts[address >> PAGE_BITS] != null ? findMount(address) : null;
+            if (mount != null) {
+                mount.memory.put(address - mount.start, value);
             } else {
-                memory[address] = value;
+                ram.put(address, value);
+                invalidateDecoded(address);
+                codeModified(address);
+            }
+
+            resetStarvedInputs();
+            CPUEventListener[] l = listeners;
+            if (l.length != 0) {
+                fireMemoryModified(l, address, 1);
             }
+        }
+
+        private void blockModified(int address, int length) {
+            resetStarvedInputs();
+            CPUEventListener[] l = listeners;
+            if (l.length != 0 && length != 0) {
+                fireMemoryModified(l, address, length);
+            }
+        }
+
+        @Override
+        public void read(int address, short[] destination, int offset, int length) {
+            checkRange(address, length);
+            int end = address + length;
+            for (int a = address; a < end;) {
+                Mount mount = mountAt(a);
+                int next;
+                if (mount != null) {
+                    next = Math.min(mount.end, end);
+                    mount.memory.read(a - mount.start, destination, offset + a - address, next - a);
+                } else {
+                    next = endOfRAM(a, end);
+                    ram.read(a, destination, offset + a - address, next - a);
+                }
 
-            CPUEvent event = new CPUEvent(DCPU16Emulator.this, address);
-            for (CPUEventListener listener : listeners) {
-                listener.memoryModified(event);
+                a = next;
+            }
+        }
+
+        @Override
+        public void write(int address, short[] source, int offset, int length) {
+            checkRange(address, length);
+            if (offset < 0 || offset > source.length - length) {
+                throw new IndexOutOfBoundsException(String.format("%d words at %d", length, offset));
+            }
+
+            int end = address + length;
+            for (int a = address; a < end;) {
+                Mount mount = mountAt(a);
+                int next;
+                if (mount != null) {
+                    next = Math.min(mount.end, end);
+                    mount.memory.write(a - mount.start, source, offset + a - address, next - a);
+                } else {
+                    next = endOfRAM(a, end);
+                    ram.write(a, source, offset + a - address, next - a);
+                    ramModified(a, next);
+                }
+
+                a = next;
+            }
+
+            blockModified(address, length);
+        }
+
+        @Override
+        public void fill(int address, int length, short value) {
+            checkRange(address, length);
+            int end = address + length;
+            for (int a = address; a < end;) {
+                Mount mount = mountAt(a);
+                int next;
+                if (mount != null) {
+                    next = Math.min(mount.end, end);
+                    mount.memory.fill(a - mount.start, next - a, value);
+                } else {
+                    next = endOfRAM(a, end);
+                    ram.fill(a, next - a, value);
+                    ramModified(a, next);
+                }
+
+                a = next;
+            }
+
+            blockModified(address, length);
+        }
+
+        @Override
+        public void copy(int source, int destination, int length) {
+            checkRange(source, length);
+            checkRange(destination, length);
+            if (endOfRAM(source, source + length) == source + length && endOfRAM(destination, destination + length) == destination + length
+                    && mountAt(source) == null && mountAt(destination) == null) {
+                ram.copy(source, destination, length);
+                ramModified(destination, destination + length);
+                blockModified(destination, length);
+            } else {
+                // Peripherals are involved, so go through a copy in case the blocks overlap.
+                short[] words = new short[length];
+                read(source, words, 0, length);
+                write(destination, words, 0, length);
             }
         }
 
@@ -112,83 +511,308 @@ public class DCPU16Emulator implements DCPU16 {
         }
     };
 
-    public DCPU16Emulator() {
-        for (short i = 0; i < 0x20; i++) {
-            memory[0x1000B + i] = i;
+    /**
+     * Get the installed peripherals which have state to save, in the order
+     * of their addresses.
+     *
+     * @return the mounts of the stateful peripherals
+     */
+    private List<Mount> statefulMounts() {
+        List<Mount> stateful = new ArrayList<Mount>();
+        for (int page = 0; page < mounts.length; page++) {
+            if (mounts[page] != null) {
+                for (Mount mount : mounts[page]) {
+                    if (mount.start >> PAGE_BITS == page && mount.peripheral instanceof StatefulPeripheral) {
+                        stateful.add(mount);
+                    }
+                }
+            }
+        }
+
+        return stateful;
+    }
+
+    /**
+     * Get the number of bytes saveState will write.
+     *
+     * @return the size of the state in bytes
+     */
+    public int stateSize() {
+        int size = 4 + 4 + NUM_REGISTERS * 2 + 1 + 8 + 8 + ram.stateSize() + 4;
+        for (Mount mount : statefulMounts()) {
+            size += 4 + 4 + ((StatefulPeripheral) mount.peripheral).stateSize();
+        }
+
+        return size;
+    }
+
+    /**
+     * Write the state of the CPU to a buffer at its position, in its byte
+     * order. The state is a magic number and version, the registers, whether
+     * the next instruction will be skipped and whether the CPU has halted, the
+     * cycle and instruction counts,
+     * the allocated pages of RAM and then the address, length and state of
+     * each installed StatefulPeripheral. Everything but the peripherals is
+     * written with bulk copies, so this is cheap enough to checkpoint many
+     * CPUs. This must not be called while the CPU is running.
+     *
+     * @param buffer the buffer to write to, which must have stateSize bytes
+     * remaining
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.putInt(STATE_MAGIC);
+        buffer.putInt(STATE_VERSION);
+        buffer.asShortBuffer().put(registers);
+        buffer.position(buffer.position() + NUM_REGISTERS * 2);
+        buffer.put((byte) ((SKIP ? 1 : 0) | (halted ? 2 : 0)));
+        buffer.putLong(cycles);
+        buffer.putLong(instructions);
+        ram.saveState(buffer);
+        List<Mount> stateful = statefulMounts();
+        buffer.putInt(stateful.size());
+        for (Mount mount : stateful) {
+            buffer.putInt(mount.start);
+            int lengthAt = buffer.position();
+            buffer.putInt(0);
+            ((StatefulPeripheral) mount.peripheral).saveState(buffer);
+            buffer.putInt(lengthAt, buffer.position() - lengthAt - 4);
+        }
+    }
+
+    /**
+     * Restore the state of the CPU from a buffer written by saveState. The
+     * buffer must be in the byte order it was saved with. The peripherals
+     * whose state was saved must be installed at the same addresses. The whole
+     * state is checked before anything is restored, so if it cannot be
+     * restored the CPU is left as it was. A CPU saved while halted is restored
+     * halted. This must not be called while the CPU is running.
+     *
+     * @param buffer the buffer to read from
+     * @throws IllegalArgumentException if the buffer does not hold a state
+     * this can restore
+     * @throws java.nio.BufferUnderflowException if the buffer ends too soon
+     */
+    public void restoreState(ByteBuffer buffer) {
+        checkState(buffer.duplicate().order(buffer.order()));
+        buffer.position(buffer.position() + 8);
+        buffer.asShortBuffer().get(registers);
+        buffer.position(buffer.position() + NUM_REGISTERS * 2);
+        int flags = buffer.get();
+        SKIP = (flags & 1) != 0;
+        halted = (flags & 2) != 0;
+        cycles = buffer.getLong();
+        instructions = buffer.getLong();
+        ram.restoreState(buffer);
+        ramReplaced();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            Mount mount = mountAt(buffer.getInt());
+            int length = buffer.getInt();
+            ByteBuffer slice = buffer.slice();
+            slice.order(buffer.order());
+            slice.limit(length);
+            ((StatefulPeripheral) mount.peripheral).restoreState(slice);
+            buffer.position(buffer.position() + length);
+        }
+
+        refreshState();
+        publish();
+        CPUEventListener[] l = listeners;
+        if (l.length != 0) {
+            fireMemoryModified(l, 0, 0x10000);
         }
     }
 
+    /**
+     * Check that a buffer holds a state restoreState can restore into this
+     * CPU and move past it, without changing anything.
+     */
+    private void checkState(ByteBuffer buffer) {
+        int magic = buffer.getInt();
+        if (magic != STATE_MAGIC) {
+            throw new IllegalArgumentException(String.format("not a saved state: magic number 0x%08X", magic));
+        }
+
+        int version = buffer.getInt();
+        if (version != STATE_VERSION) {
+            throw new IllegalArgumentException("unsupported state version " + version);
+        }
+
+        buffer.position(buffer.position() + NUM_REGISTERS * 2 + 1 + 8 + 8);
+        ram.checkState(buffer);
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            int address = buffer.getInt();
+            int length = buffer.getInt();
+            Mount mount = address >= 0 && address < 0x10000 ? mountAt(address) : null;
+            if (mount == null || mount.start != address || !(mount.peripheral instanceof StatefulPeripheral)) {
+                throw new IllegalArgumentException(String.format("no stateful peripheral at 0x%04X", address));
+            }
+
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException(String.format("bad state length %d for peripheral at 0x%04X", length, address));
+            }
+
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    /**
+     * Replace the contents of RAM with an image, sharing its pages. A page is
+     * only copied when this CPU first writes to it, so CPUs loaded from the
+     * same image share the code and data they do not modify. This must not be
+     * called while the CPU is running.
+     *
+     * @param image the image to load, which must be 64K words
+     */
+    void loadImage(PagedMemory image) {
+        ram.shareFrom(image);
+        ramReplaced();
+        CPUEventListener[] l = listeners;
+        if (l.length != 0) {
+            fireMemoryModified(l, 0, 0x10000);
+        }
+    }
+
+    /**
+     * Get the RAM behind memory, without the peripherals. This is for
+     * looking at how much of it is allocated. Writing to it directly would
+     * bypass the bookkeeping done by memory.
+     *
+     * @return the RAM
+     */
+    PagedMemory ram() {
+        return ram;
+    }
+
     @Override
     public void install(Peripheral peripheral, int address) {
-        peripherals.put(address, peripheral);
+        Mount mount = new Mount(peripheral, address);
+        if (mount.start < 0 || mount.end > 0x10000 || mount.end <= mount.start) {
+            throw new IllegalArgumentException(String.format("%s does not fit at 0x%04X", peripheral.name(), address));
+        }
+
+        int firstPage = mount.start >> PAGE_BITS;
+        int lastPage = (mount.end - 1) >> PAGE_BITS;
+        synchronized (mounts) {
+            for (int page = firstPage; page <= lastPage; page++) {
+                if (mounts[page] != null) {
+                    for (Mount existing : mounts[page]) {
+                        if (mount.start < existing.end && existing.start < mount.end) {
+                            throw new IllegalArgumentException(String.format("%s at 0x%04X overlaps %s at 0x%04X", peripheral.name(), address,
+                                    existing.peripheral.name(), existing.start));
+                        }
+                    }
+                }
+            }
+
+            for (int page = firstPage; page <= lastPage; page++) {
+                Mount[] current = mounts[page];
+                if (current == null) {
+                    mounts[page] = new Mount[]{mount};
+                } else {
+                    // Replace rather than modify the array so that a running CPU never sees a partially built page.
+                    Mount[] updated = Arrays.copyOf(current, current.length + 1);
+                    updated[current.length] = mount;
+                    mounts[page] = updated;
+                }
+            }
+
+            // Anything decoded from memory which is now covered by the peripheral is stale.
+            for (int page = firstPage - 1; page <= lastPage; page++) {
+                if (page >= 0) {
+                    decoded[page] = null;
+                }
+            }
+
+            for (int i = mount.start; i < mount.end; i++) {
+                codeModified(i);
+            }
+
+            if (peripheral instanceof InputPeripheral) {
+                InputPeripheral[] updated = Arrays.copyOf(inputs, inputs.length + 1);
+                updated[inputs.length] = (InputPeripheral) peripheral;
+                inputs = updated;
+            }
+        }
     }
 
     @Override
-    public synchronized Memory memory() {
+    public Memory memory() {
         return memoryManager;
     }
 
     @Override
-    public synchronized short PC() {
-        return memory[PC];
+    public short PC() {
+        return registers[PC];
+    }
+
+    @Override
+    public short SP() {
+        return registers[SP];
+    }
+
+    @Override
+    public short O() {
+        return registers[O];
     }
 
     @Override
-    public synchronized short SP() {
-        return memory[SP];
+    public long cycles() {
+        return cycles;
     }
 
     @Override
-    public synchronized short O() {
-        return memory[O];
+    public long instructions() {
+        return instructions;
     }
 
     @Override
-    public synchronized short register(Register r) {
-        return memory[0x10000 + r.ordinal()];
+    public short register(Register r) {
+        return registers[r.ordinal()];
     }
 
     @Override
-    public synchronized short A() {
-        return memory[A];
+    public short A() {
+        return registers[A];
     }
 
     @Override
-    public synchronized short B() {
-        return memory[B];
+    public short B() {
+        return registers[1];
     }
 
     @Override
-    public synchronized short C() {
-        return memory[C];
+    public short C() {
+        return registers[2];
     }
 
     @Override
-    public synchronized short I() {
-        return memory[I];
+    public short I() {
+        return registers[6];
     }
 
     @Override
-    public synchronized short J() {
-        return memory[J];
+    public short J() {
+        return registers[7];
     }
 
     @Override
-    public synchronized short X() {
-        return memory[X];
+    public short X() {
+        return registers[3];
     }
 
     @Override
-    public synchronized short Y() {
-        return memory[Y];
+    public short Y() {
+        return registers[4];
     }
 
     @Override
-    public synchronized short Z() {
-        return memory[Z];
+    public short Z() {
+        return registers[5];
     }
 
-    private int dcpu_opr(short code) {
+    private int dcpu_opr(int code, short nextWord) {
         switch (code) {
             case 0x00:
             case 0x01:
@@ -198,7 +822,7 @@ public class DCPU16Emulator implements DCPU16 {
             case 0x05:
             case 0x06:
             case 0x07:
-                return 0x10000 + code;
+                return REGISTER + code;
             case 0x08:
             case 0x09:
             case 0x0a:
@@ -207,7 +831,7 @@ public class DCPU16Emulator implements DCPU16 {
             case 0x0d:
             case 0x0e:
             case 0x0f:
-                return memoryManager.get(0x10000 + (code & 7)) & 0xffff;
+                return registers[code & 7] & 0xffff;
             case 0x10:
             case 0x11:
             case 0x12:
@@ -215,109 +839,441 @@ public class DCPU16Emulator implements DCPU16 {
             case 0x14:
             case 0x15:
             case 0x16:
-            case 0x17: {
-                short pc = PC();
-                if (!SKIP) {
-                    PC((short) (PC() + 1));
-                }
-                return (memoryManager.get(0x10000 + (code & 7)) + memoryManager.get(pc)) & 0xffff;
-            }
+            case 0x17:
+                PC((short) (PC() + 1));
+                return (registers[code & 7] + nextWord) & 0xffff;
             case 0x18: {
-
                 int sp = SP();
-                if (!SKIP) {
-                    SP((short) (sp + 1));
-                }
+                SP((short) (sp + 1));
                 return sp & 0xffff;
             }
             case 0x19:
                 return SP() & 0xFFFF;
             case 0x1a: {
                 short sp = (short) (SP() - 1);
-                if (!SKIP) {
-                    SP(sp);
-                }
+                SP(sp);
                 return sp & 0xffff;
             }
             case 0x1b:
-                return SP;
+                return REGISTER + SP;
             case 0x1c:
-                return PC;
+                return REGISTER + PC;
             case 0x1d:
-                return O;
-            case 0x1e: {
-                short pc = PC();
-                short v = memoryManager.get(pc);
-                PC((short) (pc + 1));
-                return v & 0xFFFF;
-            }
+                return REGISTER + O;
+            case 0x1e:
+                PC((short) (PC() + 1));
+                return nextWord & 0xFFFF;
             case 0x1f:
-                short pc = PC();
-                PC((short) (pc + 1));
-                return pc;
+                PC((short) (PC() + 1));
+                return LITERAL;
             default:
-                return 0x1000B + (code & 0x1F);
+                return LITERAL;
+        }
+    }
+
+    /**
+     * Read the value of an operand.
+     *
+     * @param code the operand code
+     * @param location the location returned by dcpu_opr for the operand
+     * @param nextWord the next word used by the operand, if any
+     * @return the value of the operand
+     */
+    private int operand(int code, int location, short nextWord) {
+        if (location >= REGISTER) {
+            return registers[location - REGISTER] & 0xFFFF;
+        } else if (location != LITERAL) {
+            return memoryManager.get(location) & 0xFFFF;
+        } else if (code == 0x1f) {
+            return nextWord & 0xFFFF;
+        } else {
+            return code - 0x20;
+        }
+    }
+
+    /**
+     * Read the value at a location which is not a literal.
+     *
+     * @param location a location as returned by dcpu_opr
+     * @return the value at the location
+     */
+    final int load(int location) {
+        if (location >= REGISTER) {
+            return registers[location - REGISTER] & 0xFFFF;
+        } else {
+            return memoryManager.get(location) & 0xFFFF;
+        }
+    }
+
+    /**
+     * Write the result of an instruction to an operand. Writes to literals
+     * are silently ignored.
+     *
+     * @param location the location returned by dcpu_opr for the operand
+     * @param value the value to write
+     */
+    private void store(int location, short value) {
+        if (location >= REGISTER) {
+            registers[location - REGISTER] = value;
+        } else if (location != LITERAL) {
+            memoryManager.put(location, value);
         }
     }
 
     private void PC(short pc) {
-        memory[PC] = pc;
+        registers[PC] = pc;
     }
 
     private void SP(short sp) {
-        memory[SP] = sp;
+        registers[SP] = sp;
+    }
+
+    private void fireMemoryModified(CPUEventListener[] l, int address, int length) {
+        for (CPUEventListener listener : l) {
+            // Set the address for each listener in case a listener modified memory itself and so reused the event.
+            memoryEvent.setMemoryModification(address, length);
+            listener.memoryModified(memoryEvent);
+        }
+    }
+
+    private long pack(int register) {
+        return (registers[register] & 0xFFFFL) | (registers[register + 1] & 0xFFFFL) << 16 | (registers[register + 2] & 0xFFFFL) << 32 | (registers[register + 3] & 0xFFFFL) << 48;
+    }
+
+    private static short unpack(long packed, int i) {
+        return (short) (packed >>> (16 * i));
+    }
+
+    /**
+     * Publish the state for snapshot and notify listeners that instructions
+     * were executed. This is called by the thread running the CPU at the end
+     * of each batch of instructions.
+     */
+    void endBatch() {
+        publish();
+        refreshState();
+
+        // FIXME: We should only execute listeners if we didn't skip. Get rid of skipping in favor of PC manipulation.
+        CPUEventListener[] l = listeners;
+        for (CPUEventListener listener : l) {
+            listener.instructionExecuted(instructionEvent);
+        }
+    }
+
+    private void publish() {
+        int s = sequence;
+        sequence = s + 1;
+        published0 = pack(A);
+        published1 = pack(Y);
+        published2 = (registers[SP] & 0xFFFFL) | (registers[PC] & 0xFFFFL) << 16 | (registers[O] & 0xFFFFL) << 32 | (SKIP ? 1L << 48 : 0);
+        publishedCycles = cycles;
+        publishedInstructions = instructions;
+        sequence = s + 2;
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        short[] values = new short[NUM_REGISTERS];
+        while (true) {
+            int s = sequence;
+            if ((s & 1) == 0) {
+                long p0 = published0;
+                long p1 = published1;
+                long p2 = published2;
+                long c = publishedCycles;
+                long n = publishedInstructions;
+                if (sequence == s) {
+                    for (int i = 0; i < 4; i++) {
+                        values[i] = unpack(p0, i);
+                        values[i + 4] = unpack(p1, i);
+                    }
+
+                    for (int i = 0; i < 3; i++) {
+                        values[i + 8] = unpack(p2, i);
+                    }
+
+                    return new Snapshot(values, c, n, unpack(p2, 3) != 0);
+                }
+            }
+
+            // The CPU is in the middle of publishing. It will be done in a moment.
+            Thread.yield();
+        }
     }
 
     @Override
     public void step() throws IllegalOpcodeException {
-        // FIXME: Need to figure out if I should make this synchronized or move listener execution to another thread.
-        stepActual();
+        step(1);
+    }
 
-        // FIXME: We should only execute listeners if we didn't skip. Get rid of skipping in favor of PC manipulation.
-        CPUEvent event = new CPUEvent(this);
-        for (CPUEventListener listener : listeners) {
-            listener.instructionExecuted(event);
+    @Override
+    public void step(int n) throws IllegalOpcodeException {
+        // Listeners are called on this thread. Slow ones should be wrapped in an AsyncCPUEventListener.
+        for (int i = 0; i < n; i++) {
+            short pc = registers[PC];
+            stepActual();
+            halted = registers[PC] == pc;
         }
+
+        endBatch();
     }
 
-    private synchronized void stepActual() throws IllegalOpcodeException {
+    private void stepActual() throws IllegalOpcodeException {
+        instructions++;
         int pc = PC() & 0xffff;
-        short op = memoryManager.get(pc);
+        long instruction = decode(pc);
+        if (SKIP) {
+            SKIP = false;
+            PC((short) (pc + length(instruction)));
+            cycles++;
+            return;
+        }
+
+        execute(instruction);
+    }
+
+    /**
+     * Execute one or more instructions starting at PC. This is what runUntil
+     * and run are built on, so subclasses can override it to execute
+     * several instructions at a time. The caller is responsible for calling
+     * endBatch.
+     *
+     * @return the number of instructions executed
+     * @throws IllegalOpcodeException if an illegal instruction was encountered
+     */
+    int advance() throws IllegalOpcodeException {
+        stepActual();
+        return 1;
+    }
+
+    /**
+     * Call advance and note whether it left the CPU halted. Only a single
+     * instruction which jumps to itself counts as a halt. A block of several
+     * which ends by jumping back to its start is just a loop.
+     *
+     * @return true if the CPU has halted
+     * @throws IllegalOpcodeException if an illegal instruction was encountered
+     */
+    private boolean advanceUntilHalted() throws IllegalOpcodeException {
+        short pc = registers[PC];
+        halted = advance() == 1 && registers[PC] == pc;
+        return halted;
+    }
+
+    /**
+     * Note that the program is about to read from an input peripheral, and
+     * tell the input peripherals to forget their empty reads if the registers
+     * have changed since the last read.
+     */
+    private void polled() {
+        if (!Arrays.equals(registers, polledRegisters)) {
+            System.arraycopy(registers, 0, polledRegisters, 0, NUM_REGISTERS);
+            resetStarvedInputs();
+        }
+    }
+
+    /**
+     * Tell the input peripherals that the program has made progress since it
+     * last polled them, so it is doing something other than waiting for
+     * input.
+     */
+    private void resetStarvedInputs() {
+        for (InputPeripheral input : inputs) {
+            input.resetStarved();
+        }
+    }
+
+    private InputPeripheral starvedInput() {
+        for (InputPeripheral input : inputs) {
+            if (input.starved()) {
+                return input;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Work out the state again without executing anything or notifying
+     * listeners, so that an idle CPU which has since been given input is
+     * seen to be running. This must only be called by the thread which would
+     * otherwise be running the CPU.
+     *
+     * @return the state
+     */
+    State refreshState() {
+        state = halted ? State.HALTED : starvedInput() != null ? State.IDLE : State.RUNNING;
+        return state;
+    }
+
+    @Override
+    public void awaitWork() throws InterruptedException {
+        waiter = Thread.currentThread();
+        try {
+            // Check again after setting the waiter so that a wake in between is not missed.
+            while (!woken) {
+                State s = state;
+                if (s == State.RUNNING) {
+                    return;
+                } else if (s == State.IDLE) {
+                    InputPeripheral input = starvedInput();
+                    if (input != null) {
+                        input.awaitInput();
+                    }
+
+                    return;
+                }
+
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+            woken = false;
+        }
+    }
+
+    @Override
+    public void wake() {
+        woken = true;
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Get the array the registers are kept in, in the order used by
+     * saveRegisters. Code which runs on the thread executing instructions may
+     * read and write it directly rather than copying the registers in and out.
+     *
+     * @return the live register array
+     */
+    short[] registers() {
+        return registers;
+    }
+
+    /**
+     * Copy the registers into an array in the order A, B, C, X, Y, Z, I, J,
+     * SP, PC, O.
+     *
+     * @param registers the array to copy into
+     */
+    void saveRegisters(short[] registers) {
+        System.arraycopy(this.registers, 0, registers, 0, NUM_REGISTERS);
+    }
+
+    /**
+     * Set the registers from an array in the order used by saveRegisters.
+     *
+     * @param registers the array to copy from
+     */
+    void restoreRegisters(short[] registers) {
+        System.arraycopy(registers, 0, this.registers, 0, NUM_REGISTERS);
+    }
+
+    /**
+     * Account for cycles executed outside of execute.
+     *
+     * @param n the number of cycles
+     */
+    void addCycles(long n) {
+        cycles += n;
+    }
+
+    /**
+     * Account for instructions executed outside of stepActual.
+     *
+     * @param n the number of instructions
+     */
+    void addInstructions(long n) {
+        instructions += n;
+    }
+
+    /**
+     * Set whether the next instruction will be skipped.
+     *
+     * @param skip true if the next instruction should be skipped
+     */
+    void setSkipping(boolean skip) {
+        SKIP = skip;
+    }
+
+    /**
+     * Determine if there are any listeners to notify.
+     *
+     * @return true if there is at least one listener
+     */
+    boolean hasListeners() {
+        return listeners.length != 0;
+    }
+
+    /**
+     * Determine if the next instruction is going to be skipped.
+     *
+     * @return true if the next instruction is going to be skipped
+     */
+    boolean skipping() {
+        return SKIP;
+    }
+
+    /**
+     * Execute a decoded instruction. PC must be the address of the instruction.
+     *
+     * @param instruction the decoded instruction
+     * @throws IllegalOpcodeException if the instruction is not valid
+     */
+    void execute(long instruction) throws IllegalOpcodeException {
+        int op = instructionWord(instruction);
         PC((short) (PC() + 1));
 
         if ((op & 0xF) == 0) {
             switch ((op >> 4) & 0x3F) {
                 case 0x01:
-                    int a = memoryManager.get(dcpu_opr((short) (op >> 10)));
-                    if (SKIP) {
-                        SKIP = false;
-                    } else {
-                        int sp = (SP() - 1) & 0xffff;
-                        SP((short) sp);
-                        memoryManager.put(sp, PC());
-                        PC((short) a);
-                    }
-
+                    cycles += cycles(instruction);
+                    int b_op = (op >> 10) & 0x3F;
+                    short literal = nextWord(instruction, 0);
+                    int a = operand(b_op, dcpu_opr(b_op, literal), literal);
+                    int sp = (SP() - 1) & 0xffff;
+                    SP((short) sp);
+                    memoryManager.put(sp, PC());
+                    PC((short) a);
                     return;
                 default:
-                    throw new IllegalOpcodeException(op);
+                    throw new IllegalOpcodeException((short) op);
             }
         }
 
-        short dst = (short) ((op >> 4) & 0x3F);
-        int aa = dcpu_opr(dst);
-        int a = memoryManager.get(aa) & 0xFFFF;
-        short b_op = (short) ((op >> 10) & 0x3F);
-        int b_addr = dcpu_opr(b_op);
-        int b = memoryManager.get(b_addr) & 0xFFFF;
-
-        if (SKIP) {
-            SKIP = false;
-            return;
-        }
+        cycles += cycles(instruction);
+        int dst = (op >> 4) & 0x3F;
+        short a_literal = nextWord(instruction, 0);
+        int aa = dcpu_opr(dst, a_literal);
+        int a = operand(dst, aa, a_literal);
+        int b_op = (op >> 10) & 0x3F;
+        short b_literal = nextWord(instruction, usesNextWord(dst) ? 1 : 0);
+        int b = operand(b_op, dcpu_opr(b_op, b_literal), b_literal);
+        operate(op & 0xF, aa, a, b);
+    }
 
+    /**
+     * Carry out a basic instruction whose operands have already been
+     * resolved.
+     *
+     * @param op the opcode, which must not be 0
+     * @param aa the location of the first operand, as returned by dcpu_opr
+     * @param a the value of the first operand
+     * @param b the value of the second operand
+     */
+    final void operate(int op, int aa, int a, int b) {
         int res;
-        Opcode opcode = Opcode.values()[op & 0xF];
+        Opcode opcode = OPCODES[op];
         switch (opcode) {
             case SET:
                 res = b;
@@ -363,40 +1319,16 @@ public class DCPU16Emulator implements DCPU16 {
                 res = a ^ b;
                 break;
             case IFE:
-                res = (a == b) ? 1 : 0;
-                if (SKIP) {
-                    SKIP = false;
-                    return;
-                }
-
-                SKIP = res == 0;
+                SKIP = a != b;
                 return;
             case IFN:
-                res = (a != b) ? 1 : 0;
-                if (SKIP) {
-                    SKIP = false;
-                    return;
-                }
-
-                SKIP = res == 0;
+                SKIP = a == b;
                 return;
             case IFG:
-                res = (a > b) ? 1 : 0;
-                if (SKIP) {
-                    SKIP = false;
-                    return;
-                }
-
-                SKIP = res == 0;
+                SKIP = a <= b;
                 return;
             case IFB:
-                res = ((a & b) != 0) ? 1 : 0;
-                if (SKIP) {
-                    SKIP = false;
-                    return;
-                }
-
-                SKIP = res == 0;
+                SKIP = (a & b) == 0;
                 return;
             default:
                 res = -1;
@@ -410,43 +1342,108 @@ public class DCPU16Emulator implements DCPU16 {
             case DIV:
             case SHL:
             case SHR:
-                memoryManager.put(O, (short) (res >> 16));
+                registers[O] = (short) (res >> 16);
             case SET:
             case MOD:
             case AND:
             case BOR:
             case XOR:
-                if (dst < 0x1f) {
-                    memoryManager.put(aa, (short) res);
+                store(aa, (short) res);
+        }
+    }
+
+    @Override
+    public long runFor(long cycles) throws IllegalOpcodeException {
+        return runUntil(cycles() + cycles);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The budget is checked after each call to advance.
+     */
+    @Override
+    public long runUntil(long cycle) throws IllegalOpcodeException {
+        long start = cycles();
+        long now = start;
+        halted = false;
+        while (now < cycle && !halted) {
+            for (int i = 0; i < BATCH_SIZE && cycles < cycle; i++) {
+                if (advanceUntilHalted()) {
+                    break;
                 }
+            }
 
-                break;
-            case IFE:
-            case IFN:
-            case IFG:
-            case IFB:
-                SKIP = res == 0;
+            now = cycles;
+            endBatch();
         }
+
+        return now - start;
+    }
+
+    @Override
+    public long runUntil(StopCondition condition) throws IllegalOpcodeException {
+        long start = cycles();
+        Thread thread = Thread.currentThread();
+        boolean stopped = false;
+        while (!stopped && !thread.isInterrupted()) {
+            for (int i = 0; i < BATCH_SIZE && !stopped; i++) {
+                short pc = registers[PC];
+                stepActual();
+                halted = registers[PC] == pc;
+                stopped = condition.shouldStop(this, pc);
+            }
+
+            endBatch();
+        }
+
+        return cycles() - start;
     }
 
     @Override
     public void run() {
-        while (true) {
-            try {
-                step();
-            } catch (IllegalOpcodeException ioe) {
-                throw new RuntimeException(ioe);
+        Thread thread = Thread.currentThread();
+        // A virtual thread is only ever descheduled when it blocks, so it has to give the other virtual threads a turn itself.
+        boolean virtual = VirtualThreads.isVirtual(thread);
+        long yieldAt = cycles + YIELD_CYCLES;
+        try {
+            while (!thread.isInterrupted()) {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    if (advanceUntilHalted()) {
+                        break;
+                    }
+                }
+
+                endBatch();
+                if (virtual && cycles - yieldAt >= 0) {
+                    Thread.yield();
+                    yieldAt = cycles + YIELD_CYCLES;
+                }
+
+                if (state != State.RUNNING) {
+                    try {
+                        awaitWork();
+                    } catch (InterruptedException ie) {
+                        thread.interrupt();
+                    }
+                }
             }
+        } catch (IllegalOpcodeException ioe) {
+            throw new RuntimeException(ioe);
         }
     }
 
     @Override
-    public void addListener(CPUEventListener l) {
-        listeners.add(l);
+    public synchronized void addListener(CPUEventListener l) {
+        CPUEventListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = l;
+        listeners = updated;
     }
 
     @Override
-    public void removeListener(CPUEventListener l) {
-        listeners.remove(l);
+    public synchronized void removeListener(CPUEventListener l) {
+        List<CPUEventListener> updated = new ArrayList<CPUEventListener>(Arrays.asList(listeners));
+        updated.remove(l);
+        listeners = updated.toArray(new CPUEventListener[updated.size()]);
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+/**
+ * An implementation of DCPU16 that compiles hot basic blocks to JVM bytecode.
+ *
+ * Blocks start out being executed by the basic block engine, which in turn
+ * falls back to the emulator for anything it can't handle. Once a block has
+ * been executed often enough it is translated into a class of its own by
+ * DCPU16Compiler. Writing to the memory of a block discards it along with its
+ * class, and execution goes back to being interpreted until the new code there
+ * gets hot.
+ *
+ * @author mcculley
+ */
+public class DCPU16JIT extends DCPU16BlockEmulator {
+
+    private static final int DEFAULT_THRESHOLD = 1000;
+    private final int threshold;
+    private volatile int compiledBlocks;
+
+    /**
+     * Create a DCPU16JIT which compiles blocks after they have run 1000 times.
+     */
+    public DCPU16JIT() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Create a DCPU16JIT.
+     *
+     * @param threshold the number of times a block is executed before it is
+     * compiled
+     */
+    public DCPU16JIT(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive");
+        }
+
+        this.threshold = threshold;
+    }
+
+    /**
+     * Get the number of blocks that have been compiled.
+     *
+     * @return the number of blocks compiled so far
+     */
+    int compiledBlocks() {
+        return compiledBlocks;
+    }
+
+    @Override
+    int executeBlock(Block block) throws IllegalOpcodeException {
+        if (hasListeners()) {
+            // Compiled code keeps registers in locals, so listeners would not see them change.
+            return super.executeBlock(block);
+        }
+
+        CompiledBlock compiled = block.compiled;
+        if (compiled == null) {
+            if (++block.invocations != threshold) {
+                return super.executeBlock(block);
+            }
+
+            try {
+                compiled = DCPU16Compiler.compile(this, block);
+            } catch (Exception e) {
+                // This would be a bug in the compiler, but the block can still be interpreted.
+                System.err.printf("Unable to compile block at 0x%04X: %s\n", block.start, e);
+                return super.executeBlock(block);
+            } catch (LinkageError le) {
+                System.err.printf("Unable to load block at 0x%04X: %s\n", block.start, le);
+                return super.executeBlock(block);
+            }
+
+            block.compiled = compiled;
+            compiledBlocks++;
+        }
+
+        int executed = compiled.execute(registers());
+        addCycles(block.cyclesAfter[executed]);
+        return executed;
+    }
+}
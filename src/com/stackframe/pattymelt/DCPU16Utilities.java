@@ -27,11 +27,19 @@
  */
 package com.stackframe.pattymelt;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * Utilities for dealing with the DCPU16 architecture.
@@ -43,9 +51,99 @@ import java.util.List;
  */
 public class DCPU16Utilities {
 
+    /**
+     * The byte order of words in binary program images unless told otherwise.
+     * This is the order the loader has always used, with the low byte of each
+     * word first.
+     */
+    public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
     private DCPU16Utilities() {
     }
 
+    /**
+     * The hexadecimal representations of all 16-bit words, built the first
+     * time one is needed.
+     */
+    private static class HexTable {
+
+        private static final String[] strings = new String[0x10000];
+
+        static {
+            char[] digits = "0123456789ABCDEF".toCharArray();
+            char[] buf = new char[4];
+            for (int i = 0; i < strings.length; i++) {
+                buf[0] = digits[i >> 12];
+                buf[1] = digits[(i >> 8) & 0xf];
+                buf[2] = digits[(i >> 4) & 0xf];
+                buf[3] = digits[i & 0xf];
+                strings[i] = new String(buf);
+            }
+        }
+    }
+
+    /**
+     * Format a word as four hexadecimal digits. This is the same as formatting
+     * it with "%04X" but does not allocate.
+     *
+     * @param word the word to format
+     * @return the word in hexadecimal
+     */
+    public static String toHex(int word) {
+        return HexTable.strings[word & 0xFFFF];
+    }
+
+    /**
+     * Create a DCPU16 using one of the available implementations.
+     *
+     * @param engine the name of the implementation: "interpreter", "block" or
+     * "jit"
+     * @return a new DCPU16
+     * @throws IllegalArgumentException if engine does not name an
+     * implementation
+     */
+    public static DCPU16 createCPU(String engine) {
+        if (engine.equals("interpreter")) {
+            return new DCPU16Emulator();
+        } else if (engine.equals("block")) {
+            return new DCPU16BlockEmulator();
+        } else if (engine.equals("jit")) {
+            return new DCPU16JIT();
+        } else {
+            throw new IllegalArgumentException("unknown engine " + engine);
+        }
+    }
+
+    /**
+     * Create a number of CPUs with their RAM loaded from the same image. The
+     * CPUs share the pages of the image and each copies a page only when it
+     * first writes to it, so memory use grows with what the CPUs change
+     * rather than with the number of CPUs. Pages of the image which are all
+     * zeros are not allocated at all.
+     *
+     * @param engine the name of the implementation, as for createCPU
+     * @param image the memory to load, of which at most the first 64K words
+     * are used
+     * @param count the number of CPUs to create
+     * @return the new CPUs
+     * @throws IllegalArgumentException if engine does not name an
+     * implementation
+     */
+    public static DCPU16[] createCPUs(String engine, Memory image, int count) {
+        PagedMemory pages = new PagedMemory(0x10000);
+        short[] words = new short[Math.min(image.size(), pages.size())];
+        image.read(0, words, 0, words.length);
+        pages.write(0, words, 0, words.length);
+        DCPU16[] cpus = new DCPU16[count];
+        for (int i = 0; i < count; i++) {
+            DCPU16Emulator cpu = (DCPU16Emulator) createCPU(engine);
+            cpu.loadImage(pages);
+            cpus[i] = cpu;
+        }
+
+        return cpus;
+    }
+
     /**
      * Decode the operand of an instruction.
      *
@@ -144,7 +242,30 @@ public class DCPU16Utilities {
     }
 
     /**
-     * Load binary data from an InputStream into memory.
+     * Load binary data from a ByteBuffer into memory. The words are copied in
+     * one bulk write, so listeners on the CPU hear about it once.
+     *
+     * @param buffer the bytes from its position to its limit are loaded
+     * @param order the order of the bytes in each word
+     * @param memory the Memory to write the data to
+     * @param offset the offset into the memory to start at
+     * @throws EOFException if the buffer ends in the middle of a word
+     */
+    public static void load(ByteBuffer buffer, ByteOrder order, Memory memory, int offset) throws EOFException {
+        if (buffer.remaining() % 2 != 0) {
+            // We must have half of a word.
+            throw new EOFException("unexpected end of file");
+        }
+
+        ShortBuffer words = buffer.duplicate().order(order).asShortBuffer();
+        short[] values = new short[words.remaining()];
+        words.get(values);
+        memory.write(offset, values, 0, values.length);
+    }
+
+    /**
+     * Load binary data from an InputStream into memory, in the default byte
+     * order.
      *
      * @param inputStream the InputStream to read from
      * @param memory the Memory to write the data to
@@ -152,24 +273,131 @@ public class DCPU16Utilities {
      * @throws IOException if the stream throws an IOException while reading
      */
     public static void load(InputStream inputStream, Memory memory, int offset) throws IOException {
-        List<Short> values = new ArrayList<Short>();
+        load(inputStream, DEFAULT_BYTE_ORDER, memory, offset);
+    }
+
+    /**
+     * Load binary data from an InputStream into memory.
+     *
+     * @param inputStream the InputStream to read from
+     * @param order the order of the bytes in each word
+     * @param memory the Memory to write the data to
+     * @param offset the offset into the memory to start at
+     * @throws IOException if the stream throws an IOException while reading
+     */
+    public static void load(InputStream inputStream, ByteOrder order, Memory memory, int offset) throws IOException {
+        byte[] bytes = new byte[8192];
+        int length = 0;
+        while (true) {
+            int n = inputStream.read(bytes, length, bytes.length - length);
+            if (n == -1) {
+                break;
+            }
+
+            length += n;
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        }
+
+        load(ByteBuffer.wrap(bytes, 0, length), order, memory, offset);
+    }
+
+    /**
+     * Read a whole file into a ByteBuffer in one go. Mapping it is not worth
+     * it for something the size of a program image.
+     *
+     * @param file the File to read
+     * @return a ByteBuffer holding the contents of the file
+     * @throws IOException if there is an error reading the file
+     */
+    private static ByteBuffer read(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    break;
+                }
+            }
+
+            buffer.flip();
+            return buffer;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Load a file into memory. The file is assumed to be lines of hexadecimal
+     * 16-bit words.
+     *
+     * @param memory Memory to read the file into
+     * @param reader a BufferedReader to read from
+     * @throws IOException
+     */
+    private static void loadHex(Memory memory, BufferedReader reader) throws IOException {
+        short[] values = new short[1024];
         int i = 0;
         while (true) {
-            int v1 = inputStream.read();
-            if (v1 == -1) {
+            String line = reader.readLine();
+            if (line == null) {
                 break;
             }
 
-            int v2 = inputStream.read();
-            if (v2 == -1) {
-                // If we got here, we must have read half of a word.
-                throw new EOFException("unexpected end of file");
+            if (i == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
             }
 
-            // FIXME: Is this the correct endianness of bytes in a word? We need standardization on this.
-            short value = (short) ((v2 << 8) | v1);
-            values.add(value);
-            memory.put(offset + i++, value);
+            // Words of 0x8000 and above are out of range for parseShort.
+            values[i++] = (short) Integer.parseInt(line.trim(), 16);
+        }
+
+        memory.write(0, values, 0, i);
+    }
+
+    private static boolean isBinary(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            char c = (char) (buffer.get(i) & 0xFF);
+            boolean isLetterOrDigit = Character.isLetterOrDigit(c);
+            boolean isWhitespace = Character.isWhitespace(c);
+            if (!(isLetterOrDigit || isWhitespace)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Load a program image into memory at address 0. The file may be binary,
+     * in the default byte order, or lines of hexadecimal 16-bit words.
+     *
+     * @param file the File to read from
+     * @param memory the Memory to write the program to
+     * @throws IOException if there is an error reading the file
+     */
+    public static void load(File file, Memory memory) throws IOException {
+        load(file, DEFAULT_BYTE_ORDER, memory);
+    }
+
+    /**
+     * Load a program image into memory at address 0. The file may be binary
+     * or lines of hexadecimal 16-bit words.
+     *
+     * @param file the File to read from
+     * @param order the order of the bytes in each word, if the file is binary
+     * @param memory the Memory to write the program to
+     * @throws IOException if there is an error reading the file
+     */
+    public static void load(File file, ByteOrder order, Memory memory) throws IOException {
+        ByteBuffer buffer = read(file);
+        // Try to guess if this is binary or not. Should add an option to be explicit.
+        if (isBinary(buffer)) {
+            load(buffer, order, memory, 0);
+        } else {
+            loadHex(memory, new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buffer.array(), 0, buffer.limit()))));
         }
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A wrapper around a DCPU16 which runs it at a fixed clock rate.
+ *
+ * The CPU is run in quanta of cycles against a schedule derived from the wall
+ * clock. After each quantum the governor parks the thread until the time at
+ * which the cycles it has executed were due, so a paced CPU only uses as much
+ * of a core as it needs. If the host falls behind the schedule the CPU runs
+ * without waiting until it has caught up, but a backlog of more than a quarter
+ * of a second is forgiven rather than made up in a burst.
+ *
+ * If the CPU halts or is found to be spinning on an input peripheral with
+ * nothing to read, the governor parks the thread until there is work to do.
+ *
+ * @author mcculley
+ */
+public class Governor implements Runnable {
+
+    /**
+     * The clock rate of the DCPU-16, in Hz.
+     */
+    public static final long DEFAULT_FREQUENCY = 100000;
+    private static final long QUANTUM_NANOS = 10 * 1000 * 1000;
+    private static final long MAX_LAG_NANOS = 250 * 1000 * 1000;
+    private static final long MEASUREMENT_NANOS = 1000 * 1000 * 1000;
+    private final DCPU16 cpu;
+    private final long frequency;
+    private final double nanosPerCycle;
+    private final long quantum;
+    private final long maxLag;
+    private volatile double achievedFrequency;
+
+    /**
+     * Create a Governor which runs at the standard clock rate.
+     *
+     * @param cpu the CPU to run
+     */
+    public Governor(DCPU16 cpu) {
+        this(cpu, DEFAULT_FREQUENCY);
+    }
+
+    /**
+     * Get something which runs a CPU at a given clock rate. A frequency of
+     * zero means run as fast as the host allows, so the CPU itself is
+     * returned rather than a Governor.
+     *
+     * @param cpu the CPU to run
+     * @param frequency the clock rate to run at, in Hz, or 0 for unlimited
+     * @return a Runnable which runs cpu
+     * @throws IllegalArgumentException if frequency is negative
+     */
+    public static Runnable runner(DCPU16 cpu, long frequency) {
+        return frequency == 0 ? cpu : new Governor(cpu, frequency);
+    }
+
+    /**
+     * Create a Governor.
+     *
+     * @param cpu the CPU to run
+     * @param frequency the clock rate to run at, in Hz
+     */
+    public Governor(DCPU16 cpu, long frequency) {
+        if (frequency <= 0) {
+            throw new IllegalArgumentException("frequency must be positive");
+        }
+
+        this.cpu = cpu;
+        this.frequency = frequency;
+        nanosPerCycle = 1e9 / frequency;
+        quantum = Math.max(1, (long) (QUANTUM_NANOS / nanosPerCycle));
+        maxLag = Math.max(quantum, (long) (MAX_LAG_NANOS / nanosPerCycle));
+    }
+
+    /**
+     * Get the clock rate the CPU is being run at.
+     *
+     * @return the target clock rate, in Hz
+     */
+    public long targetFrequency() {
+        return frequency;
+    }
+
+    /**
+     * Get the clock rate the CPU actually ran at over the last second or so.
+     *
+     * @return the measured clock rate, in Hz
+     */
+    public double achievedFrequency() {
+        return achievedFrequency;
+    }
+
+    /**
+     * Run the CPU until the current thread is interrupted. An
+     * IllegalOpcodeException is rethrown wrapped in a RuntimeException.
+     */
+    @Override
+    public void run() {
+        Thread thread = Thread.currentThread();
+        boolean virtual = VirtualThreads.isVirtual(thread);
+        long startTime = System.nanoTime();
+        long startCycles = cpu.cycles();
+        long measurementTime = startTime;
+        long measurementCycles = startCycles;
+        try {
+            while (!thread.isInterrupted()) {
+                long now = System.nanoTime();
+                long due = startCycles + (long) ((now - startTime) / nanosPerCycle);
+                long cycles = cpu.cycles();
+                if (due - cycles > maxLag) {
+                    // We have fallen too far behind to catch up. Pretend we started later.
+                    startCycles += due - cycles - maxLag;
+                    due = cycles + maxLag;
+                }
+
+                cpu.runUntil(Math.max(due, cycles) + quantum);
+                cycles = cpu.cycles();
+
+                now = System.nanoTime();
+                if (now - measurementTime >= MEASUREMENT_NANOS) {
+                    achievedFrequency = (cycles - measurementCycles) * 1e9 / (now - measurementTime);
+                    measurementTime = now;
+                    measurementCycles = cycles;
+                }
+
+                if (cpu.state() != DCPU16.State.RUNNING) {
+                    try {
+                        cpu.awaitWork();
+                    } catch (InterruptedException ie) {
+                        thread.interrupt();
+                    }
+
+                    // Time spent parked is not a backlog to catch up on.
+                    startTime = System.nanoTime();
+                    startCycles = cycles;
+                    continue;
+                }
+
+                long wait = startTime + (long) ((cycles - startCycles) * nanosPerCycle) - now;
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (virtual) {
+                    // Catching up, but other virtual threads need their turn too.
+                    Thread.yield();
+                }
+            }
+        } catch (IllegalOpcodeException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+}
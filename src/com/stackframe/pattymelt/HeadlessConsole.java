@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A console for DCPU-16 which does not need a display. The screen is just
+ * memory which can be dumped as text, and the keyboard is fed from input given
+ * up front.
+ *
+ * @author mcculley
+ */
+public class HeadlessConsole {
+
+    // The number of reads of an empty keyboard in a row, with the CPU making no progress in between, after which it is taken to be waiting for a key.
+    private static final int STARVED_READS = 64;
+    private final int numRows, numColumns;
+    private final ArrayMemory screenRAM;
+    private final short[] keys;
+    private int nextKey;
+    private int emptyReads;
+    private final Peripheral screen = new StatefulPeripheral() {
+
+        @Override
+        public Memory memory() {
+            return screenRAM;
+        }
+
+        @Override
+        public String name() {
+            return "screen";
+        }
+
+        @Override
+        public int stateSize() {
+            return screenRAM.array.length * 2;
+        }
+
+        @Override
+        public void saveState(ByteBuffer buffer) {
+            buffer.asShortBuffer().put(screenRAM.array);
+            buffer.position(buffer.position() + screenRAM.array.length * 2);
+        }
+
+        @Override
+        public void restoreState(ByteBuffer buffer) {
+            buffer.asShortBuffer().get(screenRAM.array);
+            buffer.position(buffer.position() + screenRAM.array.length * 2);
+        }
+    };
+    private final Memory keyboardRAM = new AbstractMemory() {
+
+        @Override
+        public short get(int address) {
+            if (nextKey == keys.length) {
+                if (emptyReads < STARVED_READS) {
+                    emptyReads++;
+                }
+
+                return 0;
+            }
+
+            emptyReads = 0;
+            return keys[nextKey++];
+        }
+
+        @Override
+        public void put(int address, short value) {
+            // Writes to the keyboard are ignored.
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+    };
+    private final InputPeripheral keyboard = new Keyboard();
+
+    /**
+     * The keyboard. Its state is how far through the keys it has got.
+     */
+    private class Keyboard implements InputPeripheral, StatefulPeripheral {
+
+        @Override
+        public Memory memory() {
+            return keyboardRAM;
+        }
+
+        @Override
+        public String name() {
+            return "keyboard";
+        }
+
+        @Override
+        public boolean starved() {
+            return emptyReads >= STARVED_READS;
+        }
+
+        @Override
+        public void resetStarved() {
+            emptyReads = 0;
+        }
+
+        /**
+         * All of the input is given up front, so there will never be any
+         * more. This just parks until the thread is unparked or interrupted.
+         */
+        @Override
+        public void awaitInput() throws InterruptedException {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        @Override
+        public int stateSize() {
+            return 8;
+        }
+
+        @Override
+        public void saveState(ByteBuffer buffer) {
+            buffer.putInt(nextKey);
+            buffer.putInt(emptyReads);
+        }
+
+        @Override
+        public void restoreState(ByteBuffer buffer) {
+            int next = buffer.getInt();
+            if (next < 0 || next > keys.length) {
+                throw new IllegalArgumentException("bad key index " + next);
+            }
+
+            nextKey = next;
+            emptyReads = buffer.getInt();
+        }
+    }
+
+    /**
+     * Create a HeadlessConsole.
+     *
+     * @param numRows the number of rows on the screen
+     * @param numColumns the number of columns on the screen
+     * @param keys the keys to type, in order
+     */
+    public HeadlessConsole(int numRows, int numColumns, short[] keys) {
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+        screenRAM = new ArrayMemory(numRows * numColumns);
+        this.keys = keys.clone();
+    }
+
+    public Peripheral getScreen() {
+        return screen;
+    }
+
+    public InputPeripheral getKeyboard() {
+        return keyboard;
+    }
+
+    /**
+     * Get the text on the screen. Attributes are ignored, characters which are
+     * not printable are shown as spaces and trailing spaces are removed.
+     *
+     * @return the rows of the screen
+     */
+    public String[] dump() {
+        String[] rows = new String[numRows];
+        char[] buf = new char[numColumns];
+        for (int row = 0; row < numRows; row++) {
+            int length = 0;
+            for (int column = 0; column < numColumns; column++) {
+                char c = (char) (screenRAM.array[row * numColumns + column] & 0x7f);
+                if (c < 0x20 || c > 0x7e) {
+                    c = ' ';
+                }
+
+                buf[column] = c;
+                if (c != ' ') {
+                    length = column + 1;
+                }
+            }
+
+            rows[row] = new String(buf, 0, length);
+        }
+
+        return rows;
+    }
+}
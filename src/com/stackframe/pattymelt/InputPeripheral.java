@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+/**
+ * A peripheral which the CPU polls for input. It can tell when the CPU is
+ * spinning on it waiting for input, so that whatever is running the CPU can
+ * park the thread until input arrives instead.
+ *
+ * @author mcculley
+ */
+public interface InputPeripheral extends Peripheral {
+
+    /**
+     * Determine if the CPU has been polling this peripheral while it had no
+     * input, without making any progress in between. This is meant to be
+     * called from the thread running the CPU.
+     *
+     * @return true if the CPU is waiting on this peripheral for input
+     */
+    boolean starved();
+
+    /**
+     * Forget the empty reads counted so far. The CPU calls this whenever the
+     * program writes to memory or reads from an input peripheral with
+     * different registers than the last time, so that a program which polls
+     * for input while it gets on with other work is never taken to be
+     * starved. This is called from the thread running the CPU.
+     */
+    void resetStarved();
+
+    /**
+     * Wait until this peripheral has input for the CPU. This may also return
+     * early if the thread is unparked, so that DCPU16.wake can get a CPU
+     * which is idle on this peripheral going again.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void awaitInput() throws InterruptedException;
+}
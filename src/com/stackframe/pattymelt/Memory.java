@@ -30,6 +30,10 @@ package com.stackframe.pattymelt;
 /**
  * An abstraction for a piece of memory.
  *
+ * Besides single words, memory can be moved in blocks. Implementations which
+ * have nothing better to do for the block operations can extend
+ * AbstractMemory.
+ *
  * @author mcculley
  */
 public interface Memory {
@@ -50,6 +54,56 @@ public interface Memory {
      */
     short get(int address);
 
+    /**
+     * Read a block of words from memory. This is equivalent to calling get for
+     * each word, but implementations can do it in one go.
+     *
+     * @param address the address to start reading at
+     * @param destination the array to copy the words into
+     * @param offset the index in destination of the first word read
+     * @param length the number of words to read
+     * @throws IndexOutOfBoundsException if the block does not fit in
+     * destination or in this memory
+     */
+    void read(int address, short[] destination, int offset, int length);
+
+    /**
+     * Write a block of words into memory. This is equivalent to calling put
+     * for each word, but implementations can do it in one go.
+     *
+     * @param address the address to start writing at
+     * @param source the array to copy the words from
+     * @param offset the index in source of the first word to write
+     * @param length the number of words to write
+     * @throws IndexOutOfBoundsException if the block does not fit in source or
+     * in this memory
+     */
+    void write(int address, short[] source, int offset, int length);
+
+    /**
+     * Set a block of memory to a single value.
+     *
+     * @param address the address to start at
+     * @param length the number of words to set
+     * @param value the value to set them to
+     * @throws IndexOutOfBoundsException if the block does not fit in this
+     * memory
+     */
+    void fill(int address, int length, short value);
+
+    /**
+     * Copy a block of words from one place in memory to another. The blocks
+     * may overlap, in which case the result is as if the source had been
+     * copied somewhere else first.
+     *
+     * @param source the address to copy from
+     * @param destination the address to copy to
+     * @param length the number of words to copy
+     * @throws IndexOutOfBoundsException if either block does not fit in this
+     * memory
+     */
+    void copy(int source, int destination, int length);
+
     /**
      * Get the size of this memory unit.
      *
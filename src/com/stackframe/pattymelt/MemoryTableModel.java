@@ -28,8 +28,12 @@
 package com.stackframe.pattymelt;
 
 import com.stackframe.pattymelt.DCPU16.CPUEvent;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.swing.Timer;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.TableModel;
@@ -37,6 +41,11 @@ import javax.swing.table.TableModel;
 /**
  * An implementation of TableModel that allows one to peek at memory of DCPU-16.
  *
+ * Writes are passed from the CPU thread through an AsyncCPUEventListener,
+ * which coalesces them when it falls behind, and recorded in a bitmap of dirty
+ * rows. Once per frame the dirty rows are passed on to the table on the EDT as
+ * a few range events.
+ *
  * @author mcculley
  */
 public class MemoryTableModel implements TableModel {
@@ -45,9 +54,27 @@ public class MemoryTableModel implements TableModel {
     private final Memory memory;
     private final List<TableModelListener> listeners = new ArrayList<TableModelListener>();
     private static final int columns = 8;
+    private static final int FRAME_RATE = 60;
+    // More separate runs of dirty rows than this in a frame are sent as one range.
+    private static final int MAX_RANGES = 16;
+    // The number of writes which can be waiting to be recorded before they are coalesced.
+    private static final int EVENT_CAPACITY = 1024;
+    private final AtomicLongArray dirtyRows;
+    // The ASCII column of each row, computed when first needed and discarded when the row is written to.
+    private final String[] asciiRows;
+    private final short[] rowWords = new short[columns];
+    private final AsyncCPUEventListener cpuListener;
 
+    /**
+     * Create a MemoryTableModel. This must be called on the EDT.
+     *
+     * @param cpu the CPU whose memory to show
+     */
     public MemoryTableModel(DCPU16 cpu) {
-        cpu.addListener(new DCPU16.CPUEventListener() {
+        this.memory = cpu.memory();
+        dirtyRows = new AtomicLongArray((getRowCount() + 63) / 64);
+        asciiRows = new String[getRowCount()];
+        cpuListener = new AsyncCPUEventListener(cpu, new DCPU16.CPUEventListener() {
 
             @Override
             public void instructionExecuted(CPUEvent event) {
@@ -55,14 +82,95 @@ public class MemoryTableModel implements TableModel {
 
             @Override
             public void memoryModified(CPUEvent event) {
-                for (TableModelListener l : listeners) {
-                    int row = event.addressOfMemoryModification / columns;
-                    int column = event.addressOfMemoryModification % columns + 1;
-                    l.tableChanged(new TableModelEvent(MemoryTableModel.this, row, row, column));
+                int address = event.addressOfMemoryModification();
+                int last = (address + event.lengthOfMemoryModification() - 1) / columns;
+                for (int row = address / columns; row <= last; row++) {
+                    markDirty(row);
                 }
             }
-        });
-        this.memory = cpu.memory();
+        }, EVENT_CAPACITY, AsyncCPUEventListener.OverflowPolicy.COALESCE);
+        cpu.addListener(cpuListener);
+        new Timer(1000 / FRAME_RATE, new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                flush();
+            }
+        }).start();
+    }
+
+    /**
+     * Wait until the writes made so far have been recorded as dirty rows.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitDelivery() throws InterruptedException {
+        cpuListener.awaitDelivery();
+    }
+
+    private void markDirty(int row) {
+        int word = row >> 6;
+        if (word >= dirtyRows.length()) {
+            // Nothing outside of the table is shown.
+            return;
+        }
+
+        long bit = 1L << row;
+        while (true) {
+            long bits = dirtyRows.get(word);
+            if ((bits & bit) != 0 || dirtyRows.compareAndSet(word, bits, bits | bit)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tell the listeners about the rows which have been modified since the
+     * last flush, merging adjacent rows into ranges.
+     */
+    private void flush() {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int start = -1;
+        int end = -1;
+        for (int word = 0; word < dirtyRows.length(); word++) {
+            if (dirtyRows.get(word) == 0) {
+                continue;
+            }
+
+            long bits = dirtyRows.getAndSet(word, 0);
+            while (bits != 0) {
+                int row = word << 6 | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                asciiRows[row] = null;
+                if (start != -1 && row == end + 1) {
+                    end = row;
+                } else {
+                    if (start != -1) {
+                        ranges.add(new int[]{start, end});
+                    }
+
+                    start = end = row;
+                }
+            }
+        }
+
+        if (start == -1) {
+            return;
+        }
+
+        ranges.add(new int[]{start, end});
+        if (ranges.size() > MAX_RANGES) {
+            int first = ranges.get(0)[0];
+            ranges.clear();
+            ranges.add(new int[]{first, end});
+        }
+
+        for (int[] range : ranges) {
+            TableModelEvent event = new TableModelEvent(this, range[0], range[1]);
+            for (TableModelListener l : listeners) {
+                l.tableChanged(event);
+            }
+        }
     }
 
     @Override
@@ -101,29 +209,38 @@ public class MemoryTableModel implements TableModel {
         return memory.size() / columns;
     }
 
-    @Override
-    public Object getValueAt(int rowIndex, int columnIndex) {
-        if (columnIndex == 0) {
-            return String.format("%04X", rowIndex * columns);
-        } else if (columnIndex == getColumnCount() - 1) {
+    private String ascii(int rowIndex) {
+        String ascii = asciiRows[rowIndex];
+        if (ascii == null) {
             int address = rowIndex * columns;
-            StringBuilder buf = new StringBuilder();
+            char[] buf = new char[columns];
+            memory.read(address, rowWords, 0, columns);
             for (int i = 0; i < columns; i++) {
-                short value = memory.get(address + i);
-                char c = (char) (value & 0x7F);
+                char c = (char) (rowWords[i] & 0x7F);
                 if (c < 0x20 || c > 0x7e) {
                     c = '.';
                 }
 
-                buf.append(c);
+                buf[i] = c;
             }
 
-            return buf.toString();
+            ascii = new String(buf);
+            asciiRows[rowIndex] = ascii;
+        }
+
+        return ascii;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        if (columnIndex == 0) {
+            return DCPU16Utilities.toHex(rowIndex * columns);
+        } else if (columnIndex == getColumnCount() - 1) {
+            return ascii(rowIndex);
         } else {
             columnIndex--;
             int address = rowIndex * columns + columnIndex;
-            short value = memory.get(address);
-            return String.format("%04X", value);
+            return DCPU16Utilities.toHex(memory.get(address));
         }
     }
 
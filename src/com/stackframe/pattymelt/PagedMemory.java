@@ -0,0 +1,319 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An implementation of the Memory interface which allocates its backing store
+ * a page at a time, the first time something is written to the page. Reading
+ * a page which has never been written to gives zeros, so memory which is
+ * mostly empty costs little more than the table of pages.
+ *
+ * Pages can also be shared between instances with shareFrom. A shared page is
+ * copied the first time it is written, so many instances loaded from the same
+ * image only pay for the pages they change.
+ *
+ * @author mcculley
+ */
+public final class PagedMemory extends AbstractMemory {
+
+    /**
+     * The number of words in a page, as a power of two.
+     */
+    public static final int PAGE_BITS = 8;
+    /**
+     * The number of words in a page.
+     */
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private final short[][] pages;
+    private final boolean[] shared;
+
+    /**
+     * Create a PagedMemory with no pages allocated.
+     *
+     * @param size the size in words, which must be a multiple of PAGE_SIZE
+     */
+    public PagedMemory(int size) {
+        if (size < 0 || (size & PAGE_MASK) != 0) {
+            throw new IllegalArgumentException("size must be a multiple of " + PAGE_SIZE);
+        }
+
+        pages = new short[size >> PAGE_BITS][];
+        shared = new boolean[pages.length];
+    }
+
+    /**
+     * Get a page which may be written to, allocating it or taking a private
+     * copy of it if need be.
+     *
+     * @param index the index of the page
+     * @return the page
+     */
+    private short[] page(int index) {
+        short[] page = pages[index];
+        if (page == null) {
+            page = new short[PAGE_SIZE];
+            pages[index] = page;
+        } else if (shared[index]) {
+            page = page.clone();
+            pages[index] = page;
+            shared[index] = false;
+        }
+
+        return page;
+    }
+
+    private static boolean isZero(short[] words, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (words[i] != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Replace the contents of this memory with those of another, sharing its
+     * pages instead of copying them. From then on both copy a shared page
+     * the first time they write to it, so neither sees the other's writes.
+     * This must not be called while either memory is being accessed by
+     * another thread.
+     *
+     * @param image the memory to share pages with, which must be the same
+     * size
+     */
+    public void shareFrom(PagedMemory image) {
+        if (image.pages.length != pages.length) {
+            throw new IllegalArgumentException("image is not the same size");
+        }
+
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = image.pages[i];
+            if (pages[i] != null) {
+                shared[i] = true;
+                image.shared[i] = true;
+            } else {
+                shared[i] = false;
+            }
+        }
+    }
+
+    /**
+     * Get the number of allocated pages which are shared with another
+     * instance.
+     *
+     * @return the number of shared pages
+     */
+    public int pagesShared() {
+        int n = 0;
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] != null && shared[i]) {
+                n++;
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Get the number of pages which have been allocated, including those
+     * shared with another instance.
+     *
+     * @return the number of pages allocated
+     */
+    public int pagesAllocated() {
+        int n = 0;
+        for (short[] page : pages) {
+            if (page != null) {
+                n++;
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Get the number of bytes saveState will write.
+     *
+     * @return the size of the saved contents in bytes
+     */
+    public int stateSize() {
+        return 4 + pagesAllocated() * (4 + PAGE_SIZE * 2);
+    }
+
+    /**
+     * Write the contents to a buffer at its position, in its byte order. Only
+     * allocated pages are written, each as its index followed by its words.
+     *
+     * @param buffer the buffer to write to
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.putInt(pagesAllocated());
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] != null) {
+                buffer.putInt(i);
+                buffer.asShortBuffer().put(pages[i]);
+                buffer.position(buffer.position() + PAGE_SIZE * 2);
+            }
+        }
+    }
+
+    /**
+     * Check that a buffer holds contents written by saveState for a memory of
+     * this size and move past them, without changing anything.
+     *
+     * @param buffer the buffer to check
+     * @throws IllegalArgumentException if the buffer does not hold the
+     * contents of a memory of this size
+     * @throws java.nio.BufferUnderflowException if the buffer ends too soon
+     */
+    public void checkState(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > pages.length) {
+            throw new IllegalArgumentException("bad page count " + count);
+        }
+
+        for (int n = 0; n < count; n++) {
+            int i = buffer.getInt();
+            if (i < 0 || i >= pages.length) {
+                throw new IllegalArgumentException("bad page index " + i);
+            }
+
+            if (buffer.remaining() < PAGE_SIZE * 2) {
+                throw new BufferUnderflowException();
+            }
+
+            buffer.position(buffer.position() + PAGE_SIZE * 2);
+        }
+    }
+
+    /**
+     * Replace the contents with those written by saveState. The buffer is
+     * checked first, so if it does not hold a valid state the contents are
+     * left as they were.
+     *
+     * @param buffer the buffer to read from
+     * @throws IllegalArgumentException if the buffer does not hold the
+     * contents of a memory of this size
+     * @throws java.nio.BufferUnderflowException if the buffer ends too soon
+     */
+    public void restoreState(ByteBuffer buffer) {
+        checkState(buffer.duplicate().order(buffer.order()));
+        int count = buffer.getInt();
+        Arrays.fill(pages, null);
+        Arrays.fill(shared, false);
+        for (int n = 0; n < count; n++) {
+            int i = buffer.getInt();
+            short[] page = new short[PAGE_SIZE];
+            buffer.asShortBuffer().get(page);
+            buffer.position(buffer.position() + PAGE_SIZE * 2);
+            pages[i] = page;
+        }
+    }
+
+    @Override
+    public short get(int address) {
+        short[] page = pages[address >> PAGE_BITS];
+        return page == null ? 0 : page[address & PAGE_MASK];
+    }
+
+    @Override
+    public void put(int address, short value) {
+        page(address >> PAGE_BITS)[address & PAGE_MASK] = value;
+    }
+
+    @Override
+    public int size() {
+        return pages.length << PAGE_BITS;
+    }
+
+    @Override
+    public void read(int address, short[] destination, int offset, int length) {
+        checkRange(address, length);
+        int end = address + length;
+        for (int a = address; a < end;) {
+            int n = Math.min(PAGE_SIZE - (a & PAGE_MASK), end - a);
+            short[] page = pages[a >> PAGE_BITS];
+            if (page == null) {
+                Arrays.fill(destination, offset + a - address, offset + a - address + n, (short) 0);
+            } else {
+                System.arraycopy(page, a & PAGE_MASK, destination, offset + a - address, n);
+            }
+
+            a += n;
+        }
+    }
+
+    @Override
+    public void write(int address, short[] source, int offset, int length) {
+        checkRange(address, length);
+        int end = address + length;
+        for (int a = address; a < end;) {
+            int n = Math.min(PAGE_SIZE - (a & PAGE_MASK), end - a);
+            // Writing zeros to a page which was never allocated leaves it unallocated, so loading a sparse image stays sparse.
+            if (pages[a >> PAGE_BITS] != null || !isZero(source, offset + a - address, n)) {
+                System.arraycopy(source, offset + a - address, page(a >> PAGE_BITS), a & PAGE_MASK, n);
+            }
+
+            a += n;
+        }
+    }
+
+    @Override
+    public void fill(int address, int length, short value) {
+        checkRange(address, length);
+        int end = address + length;
+        for (int a = address; a < end;) {
+            int n = Math.min(PAGE_SIZE - (a & PAGE_MASK), end - a);
+            if (value == 0 && n == PAGE_SIZE) {
+                // Clearing a whole page gives it back.
+                pages[a >> PAGE_BITS] = null;
+                shared[a >> PAGE_BITS] = false;
+            } else if (value != 0 || pages[a >> PAGE_BITS] != null) {
+                Arrays.fill(page(a >> PAGE_BITS), a & PAGE_MASK, (a & PAGE_MASK) + n, value);
+            }
+
+            a += n;
+        }
+    }
+
+    @Override
+    public void copy(int source, int destination, int length) {
+        checkRange(source, length);
+        checkRange(destination, length);
+        // The blocks may overlap and cross pages in different places, so go through a copy.
+        short[] words = new short[length];
+        read(source, words, 0, length);
+        write(destination, words, 0, length);
+    }
+}
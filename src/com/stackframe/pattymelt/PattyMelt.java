@@ -31,12 +31,8 @@ import java.awt.BorderLayout;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.LinkedList;
 import javax.swing.*;
@@ -51,82 +47,20 @@ import javax.swing.table.TableColumn;
 public class PattyMelt {
 
     // FIXE: Add support for undoing/going back in time to debug.
-    private final DCPU16 cpu = new DCPU16Emulator();
-    private volatile boolean running;
-
-    /**
-     * Load a binary file into memory.
-     *
-     * @param memory a Memory to read the file into
-     * @param file a File to read from
-     * @throws IOException
-     */
-    private static void loadBinary(Memory memory, File file) throws IOException {
-        InputStream inputStream = new FileInputStream(file);
-        try {
-            DCPU16Utilities.load(inputStream, memory, 0);
-        } finally {
-            inputStream.close();
-        }
+    private final DCPU16 cpu;
+    private final long frequency;
+    private final boolean virtual;
+    private volatile Thread cpuThread;
+    private volatile Runnable cpuStopped;
+
+    private PattyMelt(DCPU16 cpu, long frequency, boolean virtual) {
+        this.cpu = cpu;
+        this.frequency = frequency;
+        this.virtual = virtual;
     }
 
-    /**
-     * Load a file into memory. The file is assumed to be lines of hexadecimal
-     * 16-bit words.
-     *
-     * @param memory Memory to read the file into
-     * @param reader a BufferedReader to read from
-     * @throws IOException
-     */
-    private static void loadHex(Memory memory, BufferedReader reader) throws IOException {
-        int i = 0;
-        while (true) {
-            String line = reader.readLine();
-            if (line == null) {
-                return;
-            }
-
-            short value = Short.parseShort(line, 16);
-            memory.put(i++, value);
-        }
-    }
-
-    private static boolean isBinary(File file) throws IOException {
-        InputStream inputStream = new FileInputStream(file);
-        try {
-            while (true) {
-                int value = inputStream.read();
-                if (value == -1) {
-                    return false;
-                }
-
-                char c = (char) value;
-                boolean isLetterOrDigit = Character.isLetterOrDigit(c);
-                boolean isWhitespace = Character.isWhitespace(c);
-                if (!(isLetterOrDigit || isWhitespace)) {
-                    return true;
-                }
-            }
-        } finally {
-            inputStream.close();
-        }
-    }
-
-    private void launch(final boolean start, final boolean openConsole, final boolean openStateViewer, final boolean openMemoryViewer, String filename) throws Exception {
-        final Memory memory = cpu.memory();
-        File file = new File(filename);
-
-        // Try to guess if this is binary or not. Should add an option to be explicit.
-        if (isBinary(file)) {
-            loadBinary(memory, file);
-        } else {
-            BufferedReader reader = new BufferedReader(new FileReader(filename));
-            try {
-                loadHex(memory, reader);
-            } finally {
-                reader.close();
-            }
-        }
+    private void launch(final boolean start, final boolean openConsole, final boolean openStateViewer, final boolean openMemoryViewer, String filename, ByteOrder byteOrder) throws Exception {
+        DCPU16Utilities.load(new File(filename), byteOrder, cpu.memory());
 
         SwingUtilities.invokeAndWait(new Runnable() {
 
@@ -156,13 +90,13 @@ public class PattyMelt {
         cpu.install(console.getScreen(), 0x8000);
         cpu.install(console.getKeyboard(), 0x9000);
         JFrame frame = new JFrame("PattyMelt");
-        frame.setSize(352, 330);
         frame.getContentPane().add(console.getWidget());
+        frame.pack();
         frame.setVisible(true);
     }
 
     private void openStateViewer() {
-        StateViewer stateViewer = new StateViewer(cpu);
+        final StateViewer stateViewer = new StateViewer(cpu);
         JFrame stateFrame = new JFrame("CPU State");
         stateFrame.getContentPane().setLayout(new BorderLayout());
         stateFrame.getContentPane().add(stateViewer.getWidget(), BorderLayout.SOUTH);
@@ -188,6 +122,8 @@ public class PattyMelt {
                     // FIXME: reflect in GUI
                     System.err.printf("Illegal opcode 0x%04x encountered.\n", ioe.opcode);
                 }
+
+                stateViewer.refresh();
             }
         });
 
@@ -206,12 +142,21 @@ public class PattyMelt {
 
             @Override
             public void actionPerformed(ActionEvent ae) {
-                running = false;
+                stopButton.setEnabled(false);
+                cpuThread.interrupt();
+            }
+        });
+
+        // Only one thread may run the CPU, so don't allow stepping until the CPU thread has finished.
+        cpuStopped = new Runnable() {
+
+            @Override
+            public void run() {
                 runButton.setEnabled(true);
                 stopButton.setEnabled(false);
                 stepButton.setEnabled(true);
             }
-        });
+        };
 
         stateFrame.pack();
         stateFrame.setLocation(0, 100);
@@ -219,16 +164,22 @@ public class PattyMelt {
     }
 
     private void launchCPUThread() {
-        running = true;
         Runnable r = new Runnable() {
 
             @Override
             public void run() {
-                runCPU();
+                try {
+                    runCPU();
+                } finally {
+                    Runnable stopped = cpuStopped;
+                    if (stopped != null) {
+                        SwingUtilities.invokeLater(stopped);
+                    }
+                }
             }
         };
-        Thread thread = new Thread(r, "DCPU-16");
-        thread.start();
+        cpuThread = virtual ? VirtualThreads.newThread(r, "DCPU-16") : new Thread(r, "DCPU-16");
+        cpuThread.start();
     }
 
     private void openMemoryViewer() {
@@ -253,13 +204,16 @@ public class PattyMelt {
     }
 
     private void runCPU() {
+        Runnable runner = Governor.runner(cpu, frequency);
         try {
-            while (running) {
-                cpu.step();
+            runner.run();
+        } catch (RuntimeException re) {
+            if (!(re.getCause() instanceof IllegalOpcodeException)) {
+                throw re;
             }
-        } catch (IllegalOpcodeException ioe) {
+
             // FIXME: reflect in GUI
-            System.err.printf("Illegal opcode 0x%04x encountered.\n", ioe.opcode);
+            System.err.printf("Illegal opcode 0x%04x encountered.\n", ((IllegalOpcodeException) re.getCause()).opcode);
         }
     }
 
@@ -267,12 +221,26 @@ public class PattyMelt {
      * @param args the command line arguments
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-batch")) {
+            BatchRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("-server")) {
+            Scheduler.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         LinkedList<String> argList = new LinkedList<String>(Arrays.asList(args));
         String filename = null;
         boolean openConsole = true;
         boolean openStateViewer = true;
         boolean openMemoryViewer = true;
         boolean start = false;
+        String engine = "interpreter";
+        long frequency = Governor.DEFAULT_FREQUENCY;
+        ByteOrder byteOrder = DCPU16Utilities.DEFAULT_BYTE_ORDER;
+        boolean virtual = false;
         while (!argList.isEmpty()) {
             String arg = argList.removeFirst();
             if (arg.equals("-console")) {
@@ -289,16 +257,28 @@ public class PattyMelt {
                 openMemoryViewer = false;
             } else if (arg.equals("-start")) {
                 start = true;
+            } else if (arg.equals("-engine") && !argList.isEmpty()) {
+                engine = argList.removeFirst();
+            } else if (arg.equals("-frequency") && !argList.isEmpty()) {
+                frequency = Long.parseLong(argList.removeFirst());
+            } else if (arg.equals("-virtual")) {
+                virtual = true;
+            } else if (arg.equals("-bigendian")) {
+                byteOrder = ByteOrder.BIG_ENDIAN;
+            } else if (arg.equals("-littleendian")) {
+                byteOrder = ByteOrder.LITTLE_ENDIAN;
             } else {
                 filename = arg;
             }
         }
 
         if (filename == null) {
-            System.err.println("usage: [-start] [-[no]console] [-[no]stateviewer] [-[no]memoryviewer] PattyMelt <hex or binary file>");
+            System.err.println("usage: -batch <BatchRunner arguments>");
+            System.err.println("usage: -server <Scheduler arguments>");
+            System.err.println("usage: [-start] [-[no]console] [-[no]stateviewer] [-[no]memoryviewer] [-engine interpreter|block|jit] [-frequency <Hz, 0 for unlimited>] [-bigendian|-littleendian] [-virtual] PattyMelt <hex or binary file>");
         } else {
-            PattyMelt application = new PattyMelt();
-            application.launch(start, openConsole, openStateViewer, openMemoryViewer, filename);
+            PattyMelt application = new PattyMelt(DCPU16Utilities.createCPU(engine), frequency, virtual);
+            application.launch(start, openConsole, openStateViewer, openMemoryViewer, filename, byteOrder);
         }
     }
 }
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs many CPUs on a small pool of worker threads.
+ *
+ * Each CPU runs for a quantum of cycles at a time and then goes to the back
+ * of the queue of the worker which ran it. Each worker has a queue of its own
+ * and steals from the other end of the queues of the others when its own is
+ * empty, so the workers stay busy without all contending for a single queue.
+ *
+ * A CPU which halts or is left waiting for input is taken off the queues
+ * until there is something for it to do. Every few milliseconds a worker
+ * checks the idle CPUs for input that has arrived. A halted CPU is only put
+ * back by wake, which should be called after changing its state from outside.
+ * A paused CPU is taken off the queues until it is resumed.
+ *
+ * @author mcculley
+ */
+public class Scheduler {
+
+    /**
+     * The number of cycles a CPU runs for before the next one gets a turn.
+     */
+    public static final long DEFAULT_QUANTUM = 10000;
+    // How often idle CPUs are checked for input.
+    private static final long PROBE_NANOS = 5 * 1000 * 1000;
+    // How long a worker with nothing to do waits on its own queue before looking for work elsewhere.
+    private static final long IDLE_NANOS = 1000 * 1000;
+
+    private enum Status {
+
+        READY, RUNNING, SLEEPING, PAUSED
+    }
+
+    /**
+     * A CPU being run by a Scheduler, with statistics on how it has been
+     * treated.
+     */
+    public final class ScheduledCPU {
+
+        private final DCPU16 cpu;
+        /*
+         * A CPU is owned by whichever thread moved it to RUNNING, which is the
+         * only thread that runs it or updates the statistics.
+         */
+        private final AtomicReference<Status> status = new AtomicReference<Status>(Status.READY);
+        private final AtomicBoolean woken = new AtomicBoolean();
+        private volatile boolean paused;
+        private volatile boolean removed;
+        private volatile Throwable failure;
+        private volatile long readySince;
+        private volatile long quanta;
+        private volatile long cycles;
+        private volatile long runNanos;
+        private volatile long schedulableNanos;
+        private volatile long totalLagNanos;
+        private volatile long maxLagNanos;
+
+        private ScheduledCPU(DCPU16 cpu) {
+            this.cpu = cpu;
+        }
+
+        /**
+         * Get the CPU.
+         *
+         * @return the CPU
+         */
+        public DCPU16 cpu() {
+            return cpu;
+        }
+
+        /**
+         * Stop running the CPU at the end of its current quantum.
+         */
+        public void pause() {
+            paused = true;
+        }
+
+        /**
+         * Start running the CPU again after pause.
+         */
+        public void resume() {
+            paused = false;
+            if (removed) {
+                return;
+            }
+
+            if (status.compareAndSet(Status.PAUSED, Status.READY) || (woken.get() && status.compareAndSet(Status.SLEEPING, Status.READY))) {
+                woken.set(false);
+                enqueue(this, -1);
+            }
+        }
+
+        /**
+         * Determine if the CPU has been paused.
+         *
+         * @return true if the CPU has been paused
+         */
+        public boolean paused() {
+            return paused;
+        }
+
+        /**
+         * Put a halted or idle CPU back on the queues. This should be called
+         * after anything which changes the state of the CPU from outside, such
+         * as a reset or a debugger.
+         */
+        public void wake() {
+            woken.set(true);
+            cpu.wake();
+            if (!paused && !removed && status.compareAndSet(Status.SLEEPING, Status.READY)) {
+                woken.set(false);
+                enqueue(this, -1);
+            }
+        }
+
+        /**
+         * Determine if the CPU is waiting for its turn or running, as opposed
+         * to halted, idle, paused or removed.
+         *
+         * @return true if the CPU is scheduled to run
+         */
+        public boolean runnable() {
+            Status s = status.get();
+            return (s == Status.READY || s == Status.RUNNING) && !paused && !removed;
+        }
+
+        /**
+         * Get what stopped the CPU for good, if anything did.
+         *
+         * @return the exception the CPU threw, or null
+         */
+        public Throwable failure() {
+            return failure;
+        }
+
+        /**
+         * Get the number of quanta the CPU has been run for.
+         *
+         * @return the number of quanta
+         */
+        public long quanta() {
+            return quanta;
+        }
+
+        /**
+         * Get the number of cycles the CPU has executed under this scheduler.
+         *
+         * @return the number of cycles
+         */
+        public long cycles() {
+            return cycles;
+        }
+
+        /**
+         * Get the time the CPU has spent running.
+         *
+         * @return the time, in nanoseconds
+         */
+        public long runNanos() {
+            return runNanos;
+        }
+
+        /**
+         * Get the average time the CPU waited in a queue for its turn.
+         *
+         * @return the average lag, in nanoseconds
+         */
+        public double meanLagNanos() {
+            long q = quanta;
+            return q == 0 ? 0 : (double) totalLagNanos / q;
+        }
+
+        /**
+         * Get the longest time the CPU waited in a queue for its turn.
+         *
+         * @return the longest lag, in nanoseconds
+         */
+        public long maxLagNanos() {
+            return maxLagNanos;
+        }
+
+        /**
+         * Get the rate at which the CPU has executed cycles while it was
+         * scheduled to run. Time spent halted, idle or paused is not counted.
+         *
+         * @return the rate, in cycles per second
+         */
+        public double throughput() {
+            long nanos = schedulableNanos;
+            return nanos == 0 ? 0 : cycles * 1e9 / nanos;
+        }
+    }
+    private final long quantum;
+    private final List<LinkedBlockingDeque<ScheduledCPU>> queues = new ArrayList<LinkedBlockingDeque<ScheduledCPU>>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final List<ScheduledCPU> cpus = new CopyOnWriteArrayList<ScheduledCPU>();
+    private final AtomicInteger nextQueue = new AtomicInteger();
+    private final AtomicLong nextProbe = new AtomicLong(System.nanoTime());
+    private volatile boolean shutdown;
+
+    /**
+     * Create a Scheduler with the default quantum.
+     *
+     * @param threads the number of worker threads
+     */
+    public Scheduler(int threads) {
+        this(threads, DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Create a Scheduler and start its worker threads.
+     *
+     * @param threads the number of worker threads
+     * @param quantum the number of cycles a CPU runs for at a time
+     */
+    public Scheduler(int threads, long quantum) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("quantum must be positive");
+        }
+
+        this.quantum = quantum;
+        for (int i = 0; i < threads; i++) {
+            queues.add(new LinkedBlockingDeque<ScheduledCPU>());
+        }
+
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            Thread worker = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    work(index);
+                }
+            }, "CPU scheduler " + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Get the number of cycles a CPU runs for at a time.
+     *
+     * @return the quantum, in cycles
+     */
+    public long quantum() {
+        return quantum;
+    }
+
+    /**
+     * Start running a CPU. The CPU must not be run by anything else while it
+     * is scheduled.
+     *
+     * @param cpu the CPU
+     * @return the handle for controlling the CPU and getting its statistics
+     */
+    public ScheduledCPU add(DCPU16 cpu) {
+        ScheduledCPU s = new ScheduledCPU(cpu);
+        cpus.add(s);
+        enqueue(s, -1);
+        return s;
+    }
+
+    /**
+     * Stop running a CPU for good. If it is in the middle of a quantum, it
+     * finishes it first.
+     *
+     * @param s the CPU to remove
+     */
+    public void remove(ScheduledCPU s) {
+        s.removed = true;
+        cpus.remove(s);
+    }
+
+    /**
+     * Get the CPUs being run.
+     *
+     * @return the CPUs which have been added and not removed
+     */
+    public List<ScheduledCPU> cpus() {
+        return cpus;
+    }
+
+    /**
+     * Measure how evenly the CPUs have shared the workers, using Jain's
+     * fairness index of their throughput. This is 1 when every CPU has run at
+     * the same rate while it was scheduled, and 1/n when one of n CPUs got all
+     * of the time.
+     *
+     * @return the fairness index
+     */
+    public double fairness() {
+        double sum = 0;
+        double sumOfSquares = 0;
+        int n = 0;
+        for (ScheduledCPU s : cpus) {
+            if (s.schedulableNanos != 0) {
+                double throughput = s.throughput();
+                sum += throughput;
+                sumOfSquares += throughput * throughput;
+                n++;
+            }
+        }
+
+        return n == 0 || sumOfSquares == 0 ? 1 : sum * sum / (n * sumOfSquares);
+    }
+
+    /**
+     * Stop the worker threads and wait for them to finish. CPUs in the middle
+     * of a quantum finish it first.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown() throws InterruptedException {
+        shutdown = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Put a CPU at the back of a queue.
+     *
+     * @param s the CPU, which must be READY
+     * @param worker the index of the worker whose queue to use, or -1 to
+     * spread CPUs over the queues
+     */
+    private void enqueue(ScheduledCPU s, int worker) {
+        if (worker < 0) {
+            worker = (nextQueue.getAndIncrement() & Integer.MAX_VALUE) % queues.size();
+        }
+
+        s.readySince = System.nanoTime();
+        queues.get(worker).offerLast(s);
+    }
+
+    private void work(int index) {
+        LinkedBlockingDeque<ScheduledCPU> own = queues.get(index);
+        try {
+            while (!shutdown) {
+                ScheduledCPU s = own.pollFirst();
+                if (s == null) {
+                    s = steal(index);
+                }
+
+                if (s == null) {
+                    probe(index);
+                    s = own.pollFirst(IDLE_NANOS, TimeUnit.NANOSECONDS);
+                    if (s == null) {
+                        continue;
+                    }
+                }
+
+                // A paused CPU may still be in a queue. It is dropped when it comes up.
+                if (!s.status.compareAndSet(Status.READY, Status.RUNNING)) {
+                    continue;
+                }
+
+                if (!s.paused && !s.removed) {
+                    run(s);
+                }
+
+                release(s, index);
+                probe(index);
+            }
+        } catch (InterruptedException ie) {
+            // We are being shut down.
+        }
+    }
+
+    /**
+     * Take a CPU from the far end of the queue of another worker.
+     *
+     * @param index the index of the worker doing the stealing
+     * @return a CPU, or null if all of the queues are empty
+     */
+    private ScheduledCPU steal(int index) {
+        int n = queues.size();
+        for (int i = 1; i < n; i++) {
+            ScheduledCPU s = queues.get((index + i) % n).pollLast();
+            if (s != null) {
+                return s;
+            }
+        }
+
+        return null;
+    }
+
+    private void run(ScheduledCPU s) {
+        long start = System.nanoTime();
+        long lag = start - s.readySince;
+        long executed = 0;
+        try {
+            executed = s.cpu.runFor(quantum);
+        } catch (IllegalOpcodeException ioe) {
+            s.failure = ioe;
+            s.removed = true;
+        } catch (RuntimeException re) {
+            s.failure = re;
+            s.removed = true;
+        }
+
+        long end = System.nanoTime();
+        s.quanta++;
+        s.cycles += executed;
+        s.runNanos += end - start;
+        s.schedulableNanos += end - s.readySince;
+        s.totalLagNanos += lag;
+        if (lag > s.maxLagNanos) {
+            s.maxLagNanos = lag;
+        }
+    }
+
+    /**
+     * Decide what to do with a CPU which this thread owns now that it has had
+     * its turn.
+     *
+     * @param s the CPU, which must be RUNNING
+     * @param worker the index of the worker releasing it
+     */
+    private void release(ScheduledCPU s, int worker) {
+        while (true) {
+            boolean woken = s.woken.getAndSet(false);
+            Status next;
+            if (s.paused || s.removed) {
+                next = Status.PAUSED;
+            } else if (woken || s.cpu.state() == DCPU16.State.RUNNING) {
+                next = Status.READY;
+            } else {
+                next = Status.SLEEPING;
+            }
+
+            s.status.set(next);
+            if (next == Status.READY) {
+                enqueue(s, worker);
+                return;
+            }
+
+            // A resume or wake which came in while we owned the CPU could not move it, so check again.
+            boolean missed = next == Status.PAUSED ? !s.paused && !s.removed : s.woken.get() && !s.paused;
+            if (!missed || !s.status.compareAndSet(next, Status.RUNNING)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check idle CPUs for input which has arrived, if it is time to.
+     *
+     * @param worker the index of the worker doing the checking
+     */
+    private void probe(int worker) {
+        long now = System.nanoTime();
+        long due = nextProbe.get();
+        if (now - due < 0 || !nextProbe.compareAndSet(due, now + PROBE_NANOS)) {
+            return;
+        }
+
+        for (ScheduledCPU s : cpus) {
+            if (s.status.get() == Status.SLEEPING && !s.paused && s.cpu.state() == DCPU16.State.IDLE
+                    && s.status.compareAndSet(Status.SLEEPING, Status.RUNNING)) {
+                if (s.cpu instanceof DCPU16Emulator) {
+                    ((DCPU16Emulator) s.cpu).refreshState();
+                } else {
+                    try {
+                        // Executing no instructions is enough to have the CPU look at its input peripherals again.
+                        s.cpu.step(0);
+                    } catch (IllegalOpcodeException ioe) {
+                        throw new AssertionError(ioe);
+                    }
+                }
+
+                release(s, worker);
+            }
+        }
+    }
+
+    /**
+     * Run many copies of a program without a display, printing statistics
+     * every second until killed.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        LinkedList<String> argList = new LinkedList<String>(Arrays.asList(args));
+        String engine = "interpreter";
+        int threads = Runtime.getRuntime().availableProcessors();
+        long quantum = DEFAULT_QUANTUM;
+        int count = 1000;
+        File program = null;
+        while (!argList.isEmpty()) {
+            String arg = argList.removeFirst();
+            if (arg.equals("-engine") && !argList.isEmpty()) {
+                engine = argList.removeFirst();
+            } else if (arg.equals("-threads") && !argList.isEmpty()) {
+                threads = Integer.parseInt(argList.removeFirst());
+            } else if (arg.equals("-quantum") && !argList.isEmpty()) {
+                quantum = Long.parseLong(argList.removeFirst());
+            } else if (arg.equals("-cpus") && !argList.isEmpty()) {
+                count = Integer.parseInt(argList.removeFirst());
+            } else {
+                program = new File(arg);
+            }
+        }
+
+        if (program == null) {
+            System.err.println("usage: Scheduler [-engine interpreter|block|jit] [-threads <n>] [-quantum <cycles>] [-cpus <n>] <hex or binary file>");
+            System.exit(1);
+        }
+
+        ArrayMemory image = new ArrayMemory(0x10000);
+        DCPU16Utilities.load(program, image);
+        Scheduler scheduler = new Scheduler(threads, quantum);
+        for (DCPU16 cpu : DCPU16Utilities.createCPUs(engine, image, count)) {
+            HeadlessConsole console = new HeadlessConsole(16, 32, new short[0]);
+            cpu.install(console.getScreen(), 0x8000);
+            cpu.install(console.getKeyboard(), 0x9000);
+            scheduler.add(cpu);
+        }
+
+        long lastCycles = 0;
+        long lastTime = System.nanoTime();
+        while (true) {
+            Thread.sleep(1000);
+            long cycles = 0;
+            long maxLag = 0;
+            int runnable = 0;
+            int failed = 0;
+            for (ScheduledCPU s : scheduler.cpus()) {
+                cycles += s.cycles();
+                maxLag = Math.max(maxLag, s.maxLagNanos());
+                if (s.runnable()) {
+                    runnable++;
+                }
+
+                if (s.failure() != null) {
+                    failed++;
+                }
+            }
+
+            long now = System.nanoTime();
+            System.out.printf("%d CPUs, %d runnable, %d failed, %.1f M cycles/s, fairness %.3f, max lag %.1f ms\n", count, runnable, failed,
+                    (cycles - lastCycles) * 1e3 / (now - lastTime), scheduler.fairness(), maxLag / 1e6);
+            lastCycles = cycles;
+            lastTime = now;
+        }
+    }
+}
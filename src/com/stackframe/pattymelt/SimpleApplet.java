@@ -42,9 +42,12 @@ public class SimpleApplet extends JApplet {
     @Override
     public void init() {
         String program = getParameter("program");
+        String engine = getParameter("engine");
+        String frequency = getParameter("frequency");
+        boolean virtual = Boolean.parseBoolean(getParameter("virtual"));
         InputStream inputStream = getClass().getResourceAsStream(program);
         try {
-            final DCPU16 cpu = new DCPU16Emulator();
+            final DCPU16 cpu = DCPU16Utilities.createCPU(engine == null ? "interpreter" : engine);
             DCPU16Utilities.load(inputStream, cpu.memory(), 0);
             Console console = new Console(16, 32);
             cpu.install(console.getScreen(), 0x8000);
@@ -53,21 +56,26 @@ public class SimpleApplet extends JApplet {
             screenWidget.setBorder(BorderFactory.createEtchedBorder());
             add(screenWidget);
 
+            // A frequency of zero means run as fast as the host allows, as it does for PattyMelt.
+            final Runnable runner = Governor.runner(cpu, frequency == null ? Governor.DEFAULT_FREQUENCY : Long.parseLong(frequency));
             Runnable r = new Runnable() {
 
                 @Override
                 public void run() {
                     try {
-                        while (true) {
-                            cpu.step();
+                        runner.run();
+                    } catch (RuntimeException re) {
+                        if (!(re.getCause() instanceof IllegalOpcodeException)) {
+                            throw re;
                         }
-                    } catch (IllegalOpcodeException ioe) {
-                        System.err.printf("Illegal opcode 0x%04x encountered.\n", ioe.opcode);
+
+                        System.err.printf("Illegal opcode 0x%04x encountered.\n", ((IllegalOpcodeException) re.getCause()).opcode);
                     }
                 }
             };
 
-            new Thread(r, "DCPU-16").start();
+            Thread thread = virtual ? VirtualThreads.newThread(r, "DCPU-16") : new Thread(r, "DCPU-16");
+            thread.start();
         } catch (Exception e) {
             System.err.println(e);
         }
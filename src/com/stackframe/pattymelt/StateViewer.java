@@ -27,18 +27,29 @@
  */
 package com.stackframe.pattymelt;
 
-import com.stackframe.pattymelt.DCPU16.CPUEvent;
 import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
 import javax.swing.*;
 
 /**
  * A GUI to peek into the state of the virtual machine.
  *
+ * The display is refreshed from a snapshot of the registers at a fixed rate
+ * while it is showing. It does not listen to the CPU, so leaving it open costs
+ * the CPU nothing and does not keep the JIT from running. Whatever single
+ * steps the CPU calls refresh afterwards so that each step is shown straight
+ * away.
+ *
  * @author mcculley
  */
 public class StateViewer {
 
     private static final Font MONO = new Font("Monospaced", Font.PLAIN, 12);
+    private static final int DEFAULT_REFRESH_RATE = 30;
+    private static final long IPS_WINDOW_NANOS = 1000 * 1000 * 1000;
     // FIXME: Add a field to show the decoded instruction
     // FIXME: Add ability to adjust registers
     private final DCPU16 cpu;
@@ -48,7 +59,12 @@ public class StateViewer {
     private final JTextField oField = makeRegisterField();
     private final JTextField instrField = makeRegisterField();
     private final JTextField disField = makeField(17);
+    private final JTextField ipsField = makeField(12);
     private final JTextField[] registerFields = new JTextField[DCPU16.Register.values().length];
+    private final Timer timer;
+    private long lastCycles = -1;
+    private long ipsWindowStart;
+    private long ipsWindowInstructions;
 
     private static JTextField makeField(int numColumns) {
         JTextField field = new JTextField(numColumns);
@@ -62,6 +78,21 @@ public class StateViewer {
     }
 
     public StateViewer(DCPU16 cpu) {
+        this(cpu, DEFAULT_REFRESH_RATE);
+    }
+
+    /**
+     * Create a StateViewer. This must be called on the EDT.
+     *
+     * @param cpu the CPU to view
+     * @param refreshRate the number of times per second to refresh
+     * @throws IllegalArgumentException if refreshRate is not positive
+     */
+    public StateViewer(DCPU16 cpu, int refreshRate) {
+        if (refreshRate <= 0) {
+            throw new IllegalArgumentException("refreshRate must be positive");
+        }
+
         this.cpu = cpu;
         box = Box.createVerticalBox();
         JComponent pcBox = new JPanel();
@@ -96,29 +127,30 @@ public class StateViewer {
             registerFields[r.ordinal()] = registerField;
         }
 
-        cpu.addListener(new DCPU16.CPUEventListener() {
+        JComponent ipsBox = new JPanel();
+        box.add(ipsBox);
+        ipsBox.add(new JLabel("IPS:"));
+        ipsBox.add(ipsField);
+
+        timer = new Timer(Math.max(1, 1000 / refreshRate), new ActionListener() {
 
             @Override
-            public void instructionExecuted(CPUEvent event) {
-                if (SwingUtilities.isEventDispatchThread()) {
-                    update();
-                } else {
-                    try {
-                        SwingUtilities.invokeAndWait(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                update();
-                            }
-                        });
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+            public void actionPerformed(ActionEvent ae) {
+                update();
             }
+        });
+        // Only refresh while the widget is in a window, so that closing the window stops the timer.
+        box.addHierarchyListener(new HierarchyListener() {
 
             @Override
-            public void memoryModified(CPUEvent event) {
+            public void hierarchyChanged(HierarchyEvent he) {
+                if ((he.getChangeFlags() & HierarchyEvent.DISPLAYABILITY_CHANGED) != 0) {
+                    if (box.isDisplayable()) {
+                        timer.start();
+                    } else {
+                        timer.stop();
+                    }
+                }
             }
         });
         update();
@@ -128,6 +160,14 @@ public class StateViewer {
         return box;
     }
 
+    /**
+     * Refresh the display now rather than at the next tick of the timer, as
+     * after a single step. This must be called on the EDT.
+     */
+    public void refresh() {
+        update();
+    }
+
     /**
      * A convenience function to avoid the visual jitter when a field gets set
      * to the same value.
@@ -143,14 +183,30 @@ public class StateViewer {
     }
 
     private void update() {
-        setText(pcField, String.format("%04X", cpu.PC()));
-        setText(spField, String.format("%04X", cpu.SP()));
-        setText(oField, String.format("%04X", cpu.O()));
-        setText(instrField, String.format("%04X", cpu.memory().get(cpu.PC())));
-        setText(disField, DCPU16Utilities.disassemble(cpu.memory(), cpu.PC()));
+        DCPU16.Snapshot snapshot = cpu.snapshot();
+        long now = System.nanoTime();
+        if (now - ipsWindowStart >= IPS_WINDOW_NANOS) {
+            long ips = (long) ((snapshot.instructions() - ipsWindowInstructions) * 1e9 / (now - ipsWindowStart));
+            setText(ipsField, String.format("%,d", ips));
+            ipsWindowStart = now;
+            ipsWindowInstructions = snapshot.instructions();
+        }
+
+        if (snapshot.cycles() == lastCycles) {
+            // Nothing has run since the last refresh.
+            return;
+        }
+
+        lastCycles = snapshot.cycles();
+        setText(pcField, DCPU16Utilities.toHex(snapshot.PC()));
+        setText(spField, DCPU16Utilities.toHex(snapshot.SP()));
+        setText(oField, DCPU16Utilities.toHex(snapshot.O()));
+        int pc = snapshot.PC() & 0xFFFF;
+        setText(instrField, DCPU16Utilities.toHex(cpu.memory().get(pc)));
+        setText(disField, DCPU16Utilities.disassemble(cpu.memory(), pc));
         for (DCPU16.Register r : DCPU16.Register.values()) {
             JTextField registerField = registerFields[r.ordinal()];
-            setText(registerField, String.format("%04X", cpu.register(r)));
+            setText(registerField, DCPU16Utilities.toHex(snapshot.register(r)));
         }
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A peripheral with state which is saved and restored along with the CPU it
+ * is installed in by DCPU16Emulator.saveState and restoreState. Peripherals
+ * which do not implement this are left as they are when a CPU is restored.
+ *
+ * @author mcculley
+ */
+public interface StatefulPeripheral extends Peripheral {
+
+    /**
+     * Get the number of bytes saveState will write.
+     *
+     * @return the size of the state in bytes
+     */
+    int stateSize();
+
+    /**
+     * Write the state of this peripheral, including its memory, to a buffer
+     * at its position, in its byte order.
+     *
+     * @param buffer the buffer to write to
+     */
+    void saveState(ByteBuffer buffer);
+
+    /**
+     * Read the state of this peripheral as written by saveState. The buffer
+     * has the byte order it was saved with and holds exactly what saveState
+     * wrote.
+     *
+     * @param buffer the buffer to read from
+     */
+    void restoreState(ByteBuffer buffer);
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads on JVMs which have them, and ordinary threads on
+ * those which don't.
+ *
+ * The project is built for Java 6, so virtual threads are found by reflection.
+ * A CPU run on a virtual thread parks rather than pins its carrier while it
+ * waits for input or for a Governor, since nothing on those paths holds a
+ * monitor, and DCPU16Emulator.run yields every so often so that a busy CPU
+ * does not keep the others off the carrier. A CPU only parks in awaitWork
+ * once it has halted or polls for input without making any progress, so a
+ * program which does work between its polls keeps its thread running. That
+ * makes a thread per CPU affordable for tens of thousands of CPUs.
+ *
+ * @author mcculley
+ */
+public final class VirtualThreads {
+
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method unstarted;
+    private static final Method isVirtual;
+
+    static {
+        Method o = null, n = null, u = null, v = null;
+        try {
+            o = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            n = builder.getMethod("name", String.class);
+            u = builder.getMethod("unstarted", Runnable.class);
+            v = Thread.class.getMethod("isVirtual");
+            // On a JVM where virtual threads are a preview feature which is not enabled, this throws.
+            o.invoke(null);
+        } catch (Exception e) {
+            o = null;
+        }
+
+        ofVirtual = o;
+        name = n;
+        unstarted = u;
+        isVirtual = o == null ? null : v;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Determine if this JVM can create virtual threads.
+     *
+     * @return true if virtual threads are available
+     */
+    public static boolean available() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Create a thread, which is virtual if this JVM can create virtual
+     * threads. The thread is not started.
+     *
+     * @param runnable what the thread should run
+     * @param threadName the name of the thread
+     * @return a new thread
+     */
+    public static Thread newThread(Runnable runnable, String threadName) {
+        if (ofVirtual != null) {
+            try {
+                return (Thread) unstarted.invoke(name.invoke(ofVirtual.invoke(null), threadName), runnable);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return new Thread(runnable, threadName);
+    }
+
+    /**
+     * Determine if a thread is virtual.
+     *
+     * @param thread the thread
+     * @return true if thread is a virtual thread
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (isVirtual == null) {
+            return false;
+        }
+
+        try {
+            return (Boolean) isVirtual.invoke(thread);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ArrayMemory.
+ *
+ * @author mcculley
+ */
+public class ArrayMemoryTest {
+
+    /**
+     * Test that every block operation checks that the block fits in memory.
+     */
+    @Test
+    public void rangeTest() {
+        System.out.println("Testing block operation bounds.");
+        ArrayMemory memory = new ArrayMemory(0x100);
+        short[] words = new short[0x20];
+        for (int i = 0; i < 4; i++) {
+            try {
+                switch (i) {
+                    case 0:
+                        memory.read(0xF0, words, 0, words.length);
+                        break;
+                    case 1:
+                        memory.write(0xF0, words, 0, words.length);
+                        break;
+                    case 2:
+                        memory.fill(0xF0, words.length, (short) 1);
+                        break;
+                    default:
+                        memory.copy(0, 0xF0, words.length);
+                        break;
+                }
+
+                fail("operation " + i + " ran off the end");
+            } catch (IndexOutOfBoundsException e) {
+                assertTrue("operation " + i + " message " + e.getMessage(), e.getMessage().contains("at 0x00F0"));
+            }
+        }
+
+        for (short word : memory.array) {
+            assertEquals("untouched", 0, word);
+        }
+
+        memory.write(0xE0, new short[]{1, 2, 3}, 0, 3);
+        memory.copy(0xE0, 0xE1, 3);
+        memory.read(0xE0, words, 0, 4);
+        assertEquals("copy", 1, words[1]);
+        assertEquals("copy", 3, words[3]);
+        assertEquals("view", 3, memory.buffer().get(0xE3));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import com.stackframe.pattymelt.AsyncCPUEventListener.OverflowPolicy;
+import com.stackframe.pattymelt.DCPU16.CPUEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for AsyncCPUEventListener.
+ *
+ * @author mcculley
+ */
+public class AsyncCPUEventListenerTest {
+
+    /**
+     * A listener which records what it is told, optionally waiting on a latch
+     * before handling the first event.
+     */
+    private static class RecordingListener implements DCPU16.CPUEventListener {
+
+        private final CountDownLatch gate;
+        private final List<Integer> addresses = new ArrayList<Integer>();
+        private int events;
+        private int instructions;
+
+        RecordingListener(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        private void await() {
+            try {
+                gate.await();
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+        }
+
+        @Override
+        public synchronized void instructionExecuted(CPUEvent event) {
+            await();
+            instructions++;
+        }
+
+        @Override
+        public synchronized void memoryModified(CPUEvent event) {
+            await();
+            events++;
+            for (int i = 0; i < event.lengthOfMemoryModification(); i++) {
+                addresses.add(event.addressOfMemoryModification() + i);
+            }
+        }
+
+        synchronized int events() {
+            return events;
+        }
+
+        synchronized List<Integer> addresses() {
+            return new ArrayList<Integer>(addresses);
+        }
+
+        synchronized int instructions() {
+            return instructions;
+        }
+    }
+
+    private static void waitFor(RecordingListener listener, int addresses) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (listener.addresses().size() < addresses && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Test that with the BLOCK policy every event is delivered in order.
+     */
+    @Test
+    public void blockTest() throws InterruptedException {
+        System.out.println("Testing blocking overflow.");
+        DCPU16 cpu = new DCPU16Emulator();
+        RecordingListener recorder = new RecordingListener(new CountDownLatch(0));
+        AsyncCPUEventListener listener = new AsyncCPUEventListener(cpu, recorder, 16, OverflowPolicy.BLOCK);
+        for (int i = 0; i < 10000; i++) {
+            listener.memoryModified(new CPUEvent(cpu, i));
+        }
+
+        waitFor(recorder, 10000);
+        listener.stop();
+        List<Integer> addresses = recorder.addresses();
+        assertEquals("delivered", 10000, addresses.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("address", i, (int) addresses.get(i));
+        }
+
+        assertEquals("dropped", 0, listener.dropped());
+    }
+
+    /**
+     * Test that with the DROP policy events which do not fit are counted and
+     * discarded.
+     */
+    @Test
+    public void dropTest() throws InterruptedException {
+        System.out.println("Testing dropping overflow.");
+        DCPU16 cpu = new DCPU16Emulator();
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingListener recorder = new RecordingListener(gate);
+        AsyncCPUEventListener listener = new AsyncCPUEventListener(cpu, recorder, 16, OverflowPolicy.DROP);
+        for (int i = 0; i < 100; i++) {
+            listener.memoryModified(new CPUEvent(cpu, i));
+        }
+
+        gate.countDown();
+        waitFor(recorder, (int) (100 - listener.dropped()));
+        listener.stop();
+        assertTrue("dropped " + listener.dropped(), listener.dropped() >= 100 - 17);
+        assertEquals("delivered", 100 - listener.dropped(), recorder.addresses().size());
+    }
+
+    /**
+     * Test that a modification of a block of memory takes one entry in the
+     * ring and is delivered as one event, under every policy.
+     */
+    @Test
+    public void bulkTest() throws InterruptedException {
+        System.out.println("Testing bulk modifications.");
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            DCPU16 cpu = new DCPU16Emulator();
+            RecordingListener recorder = new RecordingListener(new CountDownLatch(0));
+            AsyncCPUEventListener listener = new AsyncCPUEventListener(cpu, recorder, 4, policy);
+            cpu.addListener(listener);
+            cpu.memory().write(0, new short[0x10000], 0, 0x10000);
+            cpu.memory().fill(0x8000, 0x100, (short) 1);
+            listener.awaitDelivery();
+            listener.stop();
+            assertEquals(policy + " events", 2, recorder.events());
+            assertEquals(policy + " addresses", 0x10000 + 0x100, recorder.addresses().size());
+            assertEquals(policy + " dropped", 0, listener.dropped());
+        }
+    }
+
+    /**
+     * Test that with the COALESCE policy every modified address is delivered
+     * and instruction notifications are merged.
+     */
+    @Test
+    public void coalesceTest() throws InterruptedException {
+        System.out.println("Testing coalescing overflow.");
+        DCPU16 cpu = new DCPU16Emulator();
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingListener recorder = new RecordingListener(gate);
+        AsyncCPUEventListener listener = new AsyncCPUEventListener(cpu, recorder, 8, OverflowPolicy.COALESCE);
+        CPUEvent instructionEvent = new CPUEvent(cpu);
+        for (int pass = 0; pass < 10; pass++) {
+            for (int i = 0; i < 100; i++) {
+                listener.instructionExecuted(instructionEvent);
+                listener.memoryModified(new CPUEvent(cpu, 0x1000 + i));
+            }
+        }
+
+        gate.countDown();
+        waitFor(recorder, 100);
+        Thread.sleep(100);
+        listener.stop();
+        List<Integer> addresses = recorder.addresses();
+        for (int i = 0; i < 100; i++) {
+            assertTrue("address " + i, addresses.contains(0x1000 + i));
+        }
+
+        assertTrue("delivered " + addresses.size(), addresses.size() <= 100 + 9);
+        assertTrue("instructions " + recorder.instructions(), recorder.instructions() >= 1 && recorder.instructions() <= 3);
+        assertEquals("dropped", 0, listener.dropped());
+    }
+}
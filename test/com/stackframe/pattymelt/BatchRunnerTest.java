@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for BatchRunner.
+ *
+ * @author mcculley
+ */
+public class BatchRunnerTest {
+
+    private static File write(String suffix, String contents) throws IOException {
+        File file = File.createTempFile("BatchRunnerTest", suffix);
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+
+        return file;
+    }
+
+    private static File program(int... words) throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for (int word : words) {
+            buf.append(String.format("%04x\n", word));
+        }
+
+        return write(".hex", buf.toString());
+    }
+
+    /**
+     * Test running programs which stop for different reasons.
+     */
+    @Test
+    public void haltReasonTest() throws Exception {
+        System.out.println("Testing batch runs.");
+        File hello = program(
+                0x7de1, 0x8000, 0x0048, // SET [0x8000], 'H'
+                0x7de1, 0x8001, 0x0069, // SET [0x8001], 'i'
+                0x85c3); // SUB PC, 1
+        File echo = program(
+                0x7801, 0x9000, // :loop SET A, [0x9000]
+                0x800c, // IFE A, 0
+                0x81c1, // SET PC, loop
+                0x0161, 0x8000, // SET [0x8000+I], A
+                0x8462, // ADD I, 1
+                0x81c1); // SET PC, loop
+        File spin = program(
+                0x8402, // :loop ADD A, 1
+                0x81c1); // SET PC, loop
+        File input = write(".txt", "ok");
+        for (String engine : new String[]{"interpreter", "block", "jit"}) {
+            BatchRunner runner = new BatchRunner(engine, 100000);
+            List<BatchRunner.Result> results = runner.runAll(Arrays.asList(hello, echo, spin), Collections.singletonList(input), 2);
+            assertEquals("results", 3, results.size());
+
+            BatchRunner.Result result = results.get(0);
+            assertEquals(engine + " hello", BatchRunner.HaltReason.HALTED, result.reason());
+            assertEquals(engine + " hello PC", 6, result.PC());
+            assertEquals(engine + " hello screen", "Hi", result.screen()[0]);
+            assertTrue("JSON " + result.toJSON(), result.toJSON().contains("\"halt\":\"HALTED\""));
+
+            result = results.get(1);
+            assertEquals(engine + " echo", BatchRunner.HaltReason.INPUT_EXHAUSTED, result.reason());
+            assertEquals(engine + " echo screen", "ok", result.screen()[0]);
+            assertEquals(engine + " echo I", 2, result.register(DCPU16.Register.I));
+
+            result = results.get(2);
+            assertEquals(engine + " spin", BatchRunner.HaltReason.CYCLE_LIMIT, result.reason());
+            assertTrue(engine + " spin cycles", result.cycles() >= 100000 && result.cycles() < 100010);
+
+            result = runner.run(new File("does not exist"), null);
+            assertEquals(engine + " missing", BatchRunner.HaltReason.ERROR, result.reason());
+        }
+    }
+
+    /**
+     * Test that a program which polls the keyboard while it does other work
+     * is not reported as having run out of input.
+     */
+    @Test
+    public void pollingTest() throws Exception {
+        System.out.println("Testing a batch run which polls while working.");
+        File polling = program(
+                0x85e2, 0x1000, // :loop ADD [0x1000], 1
+                0x7801, 0x9000, // SET A, [0x9000]
+                0x81c1); // SET PC, loop
+        BatchRunner.Result result = new BatchRunner("interpreter", 100000).run(polling, null);
+        assertEquals("polling", BatchRunner.HaltReason.CYCLE_LIMIT, result.reason());
+
+        // Working only in registers between polls counts as working too.
+        File counting = program(DCPU16Test.registerPollingProgram);
+        for (String engine : new String[]{"interpreter", "block", "jit"}) {
+            result = new BatchRunner(engine, 10 * 1000 * 1000).run(counting, null);
+            assertEquals(engine + " counting", BatchRunner.HaltReason.HALTED, result.reason());
+            assertEquals(engine + " count", (short) 60000, result.register(DCPU16.Register.B));
+        }
+    }
+
+    /**
+     * Test that a job which fails is recorded as an error without stopping
+     * the rest of the batch.
+     */
+    @Test
+    public void errorTest() throws Exception {
+        System.out.println("Testing batch runs which fail.");
+        File hello = program(0x85c3); // SUB PC, 1
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i <= 0x10000; i++) {
+            buf.append("0000\n");
+        }
+
+        File tooBig = write(".hex", buf.toString());
+        List<BatchRunner.Result> results = new BatchRunner("interpreter", 100000).runAll(Arrays.asList(tooBig, hello),
+                Collections.<File>emptyList(), 2);
+        assertEquals("results", 2, results.size());
+        assertEquals("too big", BatchRunner.HaltReason.ERROR, results.get(0).reason());
+        assertEquals("after the error", BatchRunner.HaltReason.HALTED, results.get(1).reason());
+
+        BatchRunner.Result result = new BatchRunner("no such engine", 100000).run(hello, null);
+        assertEquals("unknown engine", BatchRunner.HaltReason.ERROR, result.reason());
+        assertTrue("JSON " + result.toJSON(), result.toJSON().contains("\"halt\":\"ERROR\""));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Console.
+ *
+ * @author mcculley
+ */
+public class ConsoleTest {
+
+    /**
+     * Test that screen memory reads back what was written, attributes and all.
+     */
+    @Test
+    public void screenMemoryTest() {
+        System.out.println("Testing screen memory.");
+        Console console = new Console(16, 32);
+        Memory screen = console.getScreen().memory();
+        assertEquals("size", 16 * 32, screen.size());
+        screen.put(0, (short) 0xF148);
+        screen.put(1, (short) 'i');
+        screen.put(2, (short) 0x2480);
+        assertEquals("with attributes", (short) 0xF148, screen.get(0));
+        assertEquals("plain character", 'i', screen.get(1));
+        assertEquals("blinking blank", (short) 0x2480, screen.get(2));
+    }
+
+    /**
+     * Test scrolling the screen by copying it onto itself.
+     */
+    @Test
+    public void scrollTest() {
+        System.out.println("Testing scrolling.");
+        Console console = new Console(16, 32);
+        Memory screen = console.getScreen().memory();
+        for (int i = 0; i < screen.size(); i++) {
+            screen.put(i, (short) (0x7000 | (i / 32 + 'A')));
+        }
+
+        for (int i = 32; i < screen.size(); i++) {
+            screen.put(i - 32, screen.get(i));
+        }
+
+        for (int row = 0; row < 15; row++) {
+            assertEquals("row " + row, (short) (0x7000 | (row + 1 + 'A')), screen.get(row * 32));
+        }
+    }
+
+    /**
+     * Test that keys come out of the keyboard in the order they were typed.
+     */
+    @Test
+    public void keyboardTest() throws InterruptedException {
+        System.out.println("Testing keyboard.");
+        Console console = new Console(16, 32);
+        final InputPeripheral keyboard = console.getKeyboard();
+        Memory memory = keyboard.memory();
+        assertEquals("empty", 0, memory.get(0));
+        for (int i = 0; i < 20; i++) {
+            console.typed((short) ('a' + i));
+        }
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals("key " + i, 'a' + i, memory.get(0));
+        }
+
+        assertEquals("overflowed keys are dropped", 0, memory.get(0));
+        for (int i = 0; i < 100; i++) {
+            memory.get(0);
+        }
+
+        assertTrue("starved", keyboard.starved());
+        keyboard.resetStarved();
+        assertFalse("reset", keyboard.starved());
+        for (int i = 0; i < 100; i++) {
+            memory.get(0);
+        }
+
+        assertTrue("starved again", keyboard.starved());
+        Thread waiter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    keyboard.awaitInput();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        assertTrue("waiting", waiter.isAlive());
+        console.typed((short) 'z');
+        waiter.join(5000);
+        assertFalse("woken", waiter.isAlive());
+        assertFalse("not starved with a key waiting", keyboard.starved());
+        assertEquals("key", 'z', memory.get(0));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the basic block implementation of DCPU-16. All of the tests
+ * for the emulator are run against it as well.
+ *
+ * @author mcculley
+ */
+public class DCPU16BlockEmulatorTest extends DCPU16Test {
+
+    @Override
+    protected DCPU16 createCPU() {
+        return new DCPU16BlockEmulator();
+    }
+
+    static void assertSameState(DCPU16 expected, DCPU16 actual) {
+        assertEquals("PC", expected.PC(), actual.PC());
+        assertEquals("SP", expected.SP(), actual.SP());
+        assertEquals("O", expected.O(), actual.O());
+        assertEquals("cycles", expected.cycles(), actual.cycles());
+        for (DCPU16.Register r : DCPU16.Register.values()) {
+            assertEquals(r.name(), expected.register(r), actual.register(r));
+        }
+
+        for (int i = 0; i < 0x10000; i++) {
+            assertEquals("memory at " + i, expected.memory().get(i), actual.memory().get(i));
+        }
+    }
+
+    /**
+     * Test that executing blocks gives the same results as single steps.
+     */
+    @Test
+    public void blockTest() throws IllegalOpcodeException {
+        System.out.println("Testing basic blocks.");
+        DCPU16 emulator = new DCPU16Emulator();
+        DCPU16BlockEmulator cpu = (DCPU16BlockEmulator) createCPU();
+        load(emulator.memory(), loopProgram);
+        load(cpu.memory(), loopProgram);
+        for (int i = 0; i < 1000; i++) {
+            int executed = cpu.stepBlock();
+            assertTrue("executed " + executed, executed > 0);
+            for (int j = 0; j < executed; j++) {
+                emulator.step();
+            }
+
+            assertSameState(emulator, cpu);
+        }
+    }
+
+    /**
+     * Test that every kind of operand, which blocks resolve when they are
+     * built, gives the same results as single steps.
+     */
+    @Test
+    public void operandTest() throws IllegalOpcodeException {
+        System.out.println("Testing resolved operands.");
+        int[] program = new int[]{
+            0x7c01, // :loop SET A, 0x1000
+            0x1000,
+            0x7081, // SET [A], PC
+            0x6d01, // SET [0x10+A], SP
+            0x0010,
+            0x75a1, // SET PUSH, O
+            0x7d92, // ADD PEEK, 0x1234
+            0x1234,
+            0x6013, // SUB B, POP
+            0x05e1, // SET [0x2000], B
+            0x2000,
+            0x71e4, // MUL [0x2000], PC
+            0x2000,
+            0x7c10, // JSR sub
+            0x0010,
+            0x81c1, // SET PC, loop
+            0x8402, // :sub ADD A, 0x1
+            0x61c1 // SET PC, POP
+        };
+        DCPU16 emulator = new DCPU16Emulator();
+        DCPU16BlockEmulator cpu = (DCPU16BlockEmulator) createCPU();
+        load(emulator.memory(), program);
+        load(cpu.memory(), program);
+        for (int i = 0; i < 100; i++) {
+            int executed = cpu.stepBlock();
+            for (int j = 0; j < executed; j++) {
+                emulator.step();
+            }
+
+            assertSameState(emulator, cpu);
+        }
+    }
+
+    /**
+     * Test that a block which modifies an instruction later in itself runs the
+     * modified instruction.
+     */
+    @Test
+    public void selfModifyingTest() throws IllegalOpcodeException {
+        System.out.println("Testing self-modifying code.");
+        DCPU16BlockEmulator cpu = (DCPU16BlockEmulator) createCPU();
+        int[] program = new int[]{
+            0x8001, // :loop SET A, 0x0
+            0x7de1, // SET [patch], 0x8c02 (ADD A, 0x3)
+            0x0004,
+            0x8c02,
+            0x8402, // :patch ADD A, 0x1
+            0x81c1 // SET PC, loop
+        };
+        load(cpu.memory(), program);
+        for (int pass = 0; pass < 3; pass++) {
+            // Each pass writes the patch again, so the block is abandoned right after the write.
+            assertEquals("instructions before patch", 2, cpu.stepBlock());
+            while (cpu.PC() != 0) {
+                cpu.stepBlock();
+            }
+
+            assertEquals("A", 3, cpu.A());
+        }
+    }
+}
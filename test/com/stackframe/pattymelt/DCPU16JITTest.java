@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the compiling implementation of DCPU-16. All of the tests for
+ * the basic block engine are run against it with every block compiled the
+ * first time it runs.
+ *
+ * @author mcculley
+ */
+public class DCPU16JITTest extends DCPU16BlockEmulatorTest {
+
+    @Override
+    protected DCPU16 createCPU() {
+        return new DCPU16JIT(1);
+    }
+
+    /**
+     * Test that hot blocks are compiled and that compiled blocks give the same
+     * results as the emulator.
+     */
+    @Test
+    public void compileTest() throws IllegalOpcodeException {
+        System.out.println("Testing compilation.");
+        DCPU16 emulator = new DCPU16Emulator();
+        DCPU16JIT cpu = new DCPU16JIT(10);
+        load(emulator.memory(), loopProgram);
+        load(cpu.memory(), loopProgram);
+        for (int i = 0; i < 1000; i++) {
+            int executed = cpu.stepBlock();
+            for (int j = 0; j < executed; j++) {
+                emulator.step();
+            }
+
+            assertSameState(emulator, cpu);
+        }
+
+        assertTrue("compiled " + cpu.compiledBlocks() + " blocks", cpu.compiledBlocks() > 0);
+    }
+}
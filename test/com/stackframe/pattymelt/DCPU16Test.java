@@ -27,6 +27,9 @@
  */
 package com.stackframe.pattymelt;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -56,13 +59,22 @@ public class DCPU16Test {
     public void tearDown() {
     }
 
+    /**
+     * Create the implementation of DCPU16 to test.
+     *
+     * @return a new DCPU16
+     */
+    protected DCPU16 createCPU() {
+        return new DCPU16Emulator();
+    }
+
     /**
      * Test of initial state.
      */
     @Test
     public void initialStateTest() {
         System.out.println("Testing initial state.");
-        DCPU16 cpu = new DCPU16Emulator();
+        DCPU16 cpu = createCPU();
         Memory memory = cpu.memory();
         for (int i = 0; i < 0x10000; i++) {
             assertEquals("memory at " + i, 0, memory.get(i));
@@ -83,7 +95,7 @@ public class DCPU16Test {
     @Test
     public void simpleProgramTest() throws IllegalOpcodeException {
         System.out.println("Testing simple program.");
-        DCPU16 cpu = new DCPU16Emulator();
+        DCPU16 cpu = createCPU();
         int[] program = new int[]{
             0x7c01,
             0x0030,
@@ -231,4 +243,718 @@ public class DCPU16Test {
         cpu.step();
         assertEquals("PC", 0x1A, cpu.PC());
     }
+
+    /**
+     * Test that cycles are counted as described in v1.1 of the specification.
+     */
+    @Test
+    public void cycleTest() throws IllegalOpcodeException {
+        System.out.println("Testing cycle counting.");
+        DCPU16 cpu = createCPU();
+        load(cpu.memory(), new int[]{
+                    0x7c01, // SET A, 0x30
+                    0x0030,
+                    0x7de1, // SET [0x1000], 0x20
+                    0x1000,
+                    0x0020,
+                    0x7803, // SUB A, [0x1000]
+                    0x1000,
+                    0xc00d, // IFN A, 0x10
+                    0x7dc1, //     SET PC, 0x1A
+                    0x001a,
+                    0xc00c, // IFE A, 0x10
+                    0x9037, //     SHL X, 0x4
+                    0xb015, // DIV B, 0xC
+                    0x7c10, // JSR 0x0
+                    0x0000
+                });
+        assertEquals("initial", 0, cpu.cycles());
+        cpu.step();
+        assertEquals("SET with next word literal", 2, cpu.cycles());
+        cpu.step();
+        assertEquals("SET with next word address and literal", 5, cpu.cycles());
+        cpu.step();
+        assertEquals("SUB with next word address", 8, cpu.cycles());
+        cpu.step();
+        assertEquals("IFN", 10, cpu.cycles());
+        cpu.step();
+        assertEquals("failed test", 11, cpu.cycles());
+        cpu.step();
+        assertEquals("IFE", 13, cpu.cycles());
+        cpu.step();
+        assertEquals("SHL", 15, cpu.cycles());
+        cpu.step();
+        assertEquals("DIV", 18, cpu.cycles());
+        cpu.step();
+        assertEquals("JSR with next word literal", 21, cpu.cycles());
+    }
+
+    /**
+     * Test running for a budget of cycles.
+     */
+    @Test
+    public void runForTest() throws IllegalOpcodeException {
+        System.out.println("Testing running for a number of cycles.");
+        DCPU16 cpu = createCPU();
+        load(cpu.memory(), loopProgram);
+        long executed = cpu.runFor(1000);
+        assertEquals("executed", cpu.cycles(), executed);
+        assertTrue("executed " + executed, executed >= 1000 && executed < 1200);
+        long before = cpu.cycles();
+        executed = cpu.runUntil(5000);
+        assertEquals("executed", cpu.cycles() - before, executed);
+        assertTrue("cycles " + cpu.cycles(), cpu.cycles() >= 5000 && cpu.cycles() < 5200);
+        assertEquals("already there", 0, cpu.runUntil(10));
+    }
+
+    /**
+     * Test stepping a batch of instructions.
+     */
+    @Test
+    public void batchTest() throws IllegalOpcodeException {
+        System.out.println("Testing batched stepping.");
+        DCPU16 single = createCPU();
+        load(single.memory(), loopProgram);
+        DCPU16 batched = createCPU();
+        load(batched.memory(), loopProgram);
+        for (int i = 0; i < 1000; i++) {
+            single.step();
+        }
+
+        batched.step(1000);
+        assertEquals("PC", single.PC(), batched.PC());
+        assertEquals("A", single.A(), batched.A());
+        assertEquals("B", single.B(), batched.B());
+        assertEquals("SP", single.SP(), batched.SP());
+        assertEquals("cycles", single.cycles(), batched.cycles());
+
+        final int[] notifications = new int[1];
+        batched.addListener(new DCPU16.CPUEventListener() {
+
+            @Override
+            public void instructionExecuted(DCPU16.CPUEvent event) {
+                notifications[0]++;
+            }
+
+            @Override
+            public void memoryModified(DCPU16.CPUEvent event) {
+            }
+        });
+        batched.step(100);
+        assertEquals("notifications", 1, notifications[0]);
+    }
+
+    /**
+     * Test that snapshots taken while the CPU is running are consistent.
+     */
+    @Test
+    public void snapshotTest() throws InterruptedException {
+        System.out.println("Testing snapshots.");
+        final DCPU16 cpu = createCPU();
+        load(cpu.memory(), new int[]{
+                    0x8402, // :loop ADD A, 0x1
+                    0x8412, // ADD B, 0x1
+                    0x81c1 // SET PC, loop
+                });
+        Thread thread = new Thread(cpu);
+        thread.start();
+        try {
+            for (int i = 0; i < 10000; i++) {
+                DCPU16.Snapshot snapshot = cpu.snapshot();
+                long cycles = snapshot.cycles();
+                assertEquals("A at cycle " + cycles, (short) ((cycles + 3) / 5), snapshot.register(DCPU16.Register.A));
+                assertEquals("B at cycle " + cycles, (short) ((cycles + 1) / 5), snapshot.register(DCPU16.Register.B));
+            }
+
+            // The snapshots can all be taken before the thread gets going.
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cpu.snapshot().cycles() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+
+        DCPU16.Snapshot snapshot = cpu.snapshot();
+        assertEquals("PC", cpu.PC(), snapshot.PC());
+        assertEquals("A", cpu.A(), snapshot.register(DCPU16.Register.A));
+        assertEquals("B", cpu.B(), snapshot.register(DCPU16.Register.B));
+        assertEquals("cycles", cpu.cycles(), snapshot.cycles());
+        assertTrue("ran", snapshot.cycles() > 0);
+    }
+
+    /**
+     * Test running until a stop condition is met.
+     */
+    @Test
+    public void stopConditionTest() throws IllegalOpcodeException {
+        System.out.println("Testing stop conditions.");
+        DCPU16 cpu = createCPU();
+        load(cpu.memory(), loopProgram);
+        cpu.runUntil(DCPU16.StopCondition.pc((short) 7));
+        assertEquals("PC", 7, cpu.PC());
+        long target = cpu.cycles() + 500;
+        cpu.runUntil(DCPU16.StopCondition.cycle(target));
+        assertTrue("cycles " + cpu.cycles(), cpu.cycles() >= target && cpu.cycles() < target + 4);
+
+        cpu = createCPU();
+        load(cpu.memory(), new int[]{
+                    0x8001, // SET A, 0x0
+                    0x8402, // ADD A, 0x1
+                    0x85c3 // :crash SUB PC, 1
+                });
+        long executed = cpu.runUntil(DCPU16.StopCondition.any(DCPU16.StopCondition.HALT, DCPU16.StopCondition.cycle(1000000)));
+        assertEquals("PC", 2, cpu.PC());
+        assertEquals("A", 1, cpu.A());
+        assertEquals("executed", cpu.cycles(), executed);
+        assertTrue("halted early", cpu.cycles() < 1000000);
+    }
+
+    /**
+     * Test that a CPU which jumps to itself is reported as halted, and that
+     * run parks the thread until it is woken.
+     */
+    @Test
+    public void haltTest() throws Exception {
+        System.out.println("Testing halting.");
+        DCPU16 cpu = createCPU();
+        load(cpu.memory(), loopProgram);
+        cpu.runFor(1000);
+        assertEquals("state", DCPU16.State.RUNNING, cpu.state());
+
+        cpu = createCPU();
+        load(cpu.memory(), new int[]{
+                    0x8001, // SET A, 0x0
+                    0x8402, // ADD A, 0x1
+                    0x85c3 // :crash SUB PC, 1
+                });
+        long executed = cpu.runFor(1000000);
+        assertTrue("halted early", executed < 1000000);
+        assertEquals("state", DCPU16.State.HALTED, cpu.state());
+        assertEquals("PC", 2, cpu.PC());
+
+        Thread thread = new Thread(cpu);
+        thread.start();
+        try {
+            awaitParked(thread);
+            long instructions = cpu.snapshot().instructions();
+            Thread.sleep(100);
+            assertEquals("instructions while parked", instructions, cpu.snapshot().instructions());
+            cpu.wake();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cpu.snapshot().instructions() == instructions && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertTrue("ran after wake", cpu.snapshot().instructions() > instructions);
+            awaitParked(thread);
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+
+        assertEquals("state", DCPU16.State.HALTED, cpu.state());
+    }
+
+    /**
+     * Test that a program which polls for input while it does other work is
+     * not taken to be idle, and that one which only polls is.
+     */
+    @Test
+    public void idleTest() throws Exception {
+        System.out.println("Testing idle detection.");
+        DCPU16 cpu = createCPU();
+        HeadlessConsole console = new HeadlessConsole(16, 32, new short[0]);
+        cpu.install(console.getKeyboard(), 0x9000);
+        load(cpu.memory(), new int[]{
+                    0x85e2, // :loop ADD [0x1000], 1
+                    0x1000,
+                    0x7801, // SET A, [0x9000]
+                    0x9000,
+                    0x81c1 // SET PC, loop
+                });
+        cpu.runFor(100000);
+        assertEquals("state while working", DCPU16.State.RUNNING, cpu.state());
+
+        Thread thread = new Thread(cpu);
+        thread.start();
+        try {
+            Thread.sleep(100);
+            short counter = cpu.memory().get(0x1000);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cpu.memory().get(0x1000) == counter && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertTrue("still working", cpu.memory().get(0x1000) != counter);
+            assertEquals("state while running", DCPU16.State.RUNNING, cpu.state());
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+
+        // A program which polls while it works only in registers is not idle either.
+        cpu = createCPU();
+        console = new HeadlessConsole(16, 32, new short[0]);
+        cpu.install(console.getKeyboard(), 0x9000);
+        load(cpu.memory(), registerPollingProgram);
+        cpu.runFor(10000);
+        assertEquals("state while working in registers", DCPU16.State.RUNNING, cpu.state());
+        thread = new Thread(cpu);
+        thread.start();
+        try {
+            awaitParked(thread);
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+
+        assertEquals("state when done", DCPU16.State.HALTED, cpu.state());
+        assertEquals("result", (short) 60000, cpu.memory().get(0x1000));
+
+        cpu = createCPU();
+        console = new HeadlessConsole(16, 32, new short[0]);
+        cpu.install(console.getKeyboard(), 0x9000);
+        load(cpu.memory(), new int[]{
+                    0x7801, // :loop SET A, [0x9000]
+                    0x9000,
+                    0x800c, // IFE A, 0
+                    0x81c1 // SET PC, loop
+                });
+        cpu.runFor(100000);
+        assertEquals("state while polling", DCPU16.State.IDLE, cpu.state());
+    }
+
+    /**
+     * Test that the keyboard is only starved by a program which polls it
+     * without making any progress, as the batch runner and the scheduler
+     * rely on it.
+     */
+    @Test
+    public void starvedTest() throws IllegalOpcodeException {
+        System.out.println("Testing keyboard starvation.");
+        DCPU16 cpu = createCPU();
+        HeadlessConsole console = new HeadlessConsole(16, 32, new short[0]);
+        cpu.install(console.getKeyboard(), 0x9000);
+        load(cpu.memory(), registerPollingProgram);
+        for (int i = 0; i < 1000; i++) {
+            cpu.step();
+            assertFalse("starved at B=" + cpu.B(), console.getKeyboard().starved());
+        }
+
+        cpu = createCPU();
+        console = new HeadlessConsole(16, 32, new short[]{'a'});
+        cpu.install(console.getKeyboard(), 0x9000);
+        load(cpu.memory(), new int[]{
+                    0x7801, // :loop SET A, [0x9000]
+                    0x9000,
+                    0x81c1 // SET PC, loop
+                });
+        cpu.step(2);
+        assertEquals("key", 'a', cpu.A());
+        assertFalse("starved with a key read", console.getKeyboard().starved());
+        cpu.step(1000);
+        assertTrue("starved", console.getKeyboard().starved());
+    }
+
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("thread state", Thread.State.WAITING, thread.getState());
+    }
+
+    /**
+     * Test that an instruction which has already been decoded is decoded again
+     * after it is overwritten, whether by the program itself or through
+     * memory.
+     */
+    @Test
+    public void decodeCacheTest() throws IllegalOpcodeException {
+        System.out.println("Testing decoded instruction invalidation.");
+        DCPU16 cpu = createCPU();
+        load(cpu.memory(), new int[]{
+                    0x8001, // SET A, 0x0
+                    0x8402, // :patch ADD A, 0x1
+                    0x7de1, // SET [patch], 0x8c02 (ADD A, 0x3)
+                    0x0001,
+                    0x8c02,
+                    0x85c1 // SET PC, patch
+                });
+        cpu.step(2);
+        assertEquals("original", 1, cpu.A());
+        cpu.step(3);
+        assertEquals("patched by the program", 4, cpu.A());
+
+        cpu.step(2);
+        cpu.memory().write(1, new short[]{(short) 0x9402}, 0, 1); // ADD A, 0x5
+        cpu.step();
+        assertEquals("patched with write", 9, cpu.A());
+
+        cpu.step(2);
+        cpu.memory().fill(1, 1, (short) 0x9802); // ADD A, 0x6
+        cpu.step();
+        assertEquals("patched with fill", 15, cpu.A());
+
+        // Changing the word after an instruction changes its operand.
+        cpu.memory().put(4, (short) 0x0001); // SET [patch], 0x0001 (SET A, A)
+        cpu.step(2);
+        assertEquals("operand", 1, cpu.memory().get(1));
+        cpu.step();
+        assertEquals("patched to do nothing", 15, cpu.A());
+        assertEquals("PC", 2, cpu.PC());
+    }
+
+    /**
+     * Test that installed peripherals are mapped into the address space.
+     */
+    @Test
+    public void peripheralTest() {
+        System.out.println("Testing peripherals.");
+        DCPU16 cpu = createCPU();
+        final ArrayMemory deviceMemory = new ArrayMemory(0x200);
+        Peripheral device = new Peripheral() {
+
+            @Override
+            public String name() {
+                return "device";
+            }
+
+            @Override
+            public Memory memory() {
+                return deviceMemory;
+            }
+        };
+        cpu.install(device, 0x8080);
+        Memory memory = cpu.memory();
+        memory.put(0x807F, (short) 1);
+        memory.put(0x8080, (short) 2);
+        memory.put(0x827F, (short) 3);
+        memory.put(0x8280, (short) 4);
+        assertEquals("device start", 2, deviceMemory.get(0));
+        assertEquals("device end", 3, deviceMemory.get(0x1FF));
+        assertEquals("below device", 1, memory.get(0x807F));
+        assertEquals("above device", 4, memory.get(0x8280));
+        assertEquals("device through CPU", 3, memory.get(0x827F));
+
+        try {
+            cpu.install(device, 0x8200);
+            fail("overlapping peripheral was installed");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+
+        try {
+            cpu.install(device, 0xFF00);
+            fail("peripheral past the end of memory was installed");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+
+        cpu.install(device, 0x8280);
+        assertEquals("adjacent device", 2, memory.get(0x8280));
+    }
+
+    /**
+     * Test block operations on memory which spans RAM and a peripheral.
+     */
+    @Test
+    public void bulkMemoryTest() throws IllegalOpcodeException {
+        System.out.println("Testing block memory operations.");
+        DCPU16 cpu = createCPU();
+        final ArrayMemory deviceMemory = new ArrayMemory(0x10);
+        cpu.install(new Peripheral() {
+
+            @Override
+            public String name() {
+                return "device";
+            }
+
+            @Override
+            public Memory memory() {
+                return deviceMemory;
+            }
+        }, 0x8008);
+        final int[] notifications = new int[1];
+        cpu.addListener(new DCPU16.CPUEventListener() {
+
+            @Override
+            public void instructionExecuted(DCPU16.CPUEvent event) {
+            }
+
+            @Override
+            public void memoryModified(DCPU16.CPUEvent event) {
+                notifications[0]++;
+            }
+        });
+
+        Memory memory = cpu.memory();
+        short[] words = new short[0x20];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = (short) (i + 1);
+        }
+
+        memory.write(0x8000, words, 0, words.length);
+        assertEquals("notifications", 1, notifications[0]);
+        assertEquals("below device", 8, memory.get(0x8007));
+        assertEquals("device start", 9, deviceMemory.get(0));
+        assertEquals("device end", 0x18, deviceMemory.get(0xF));
+        assertEquals("above device", 0x19, memory.get(0x8018));
+
+        short[] read = new short[0x22];
+        memory.read(0x8000, read, 1, 0x20);
+        for (int i = 0; i < words.length; i++) {
+            assertEquals("read", words[i], read[i + 1]);
+        }
+
+        memory.copy(0x8000, 0x8004, 0x20);
+        assertEquals("copied", 1, memory.get(0x8004));
+        assertEquals("copied into device", 5, deviceMemory.get(0));
+        assertEquals("copied from device", 0x18, memory.get(0x801B));
+
+        memory.fill(0x8006, 0x10, (short) 0x55);
+        assertEquals("filled", 0x55, memory.get(0x8006));
+        assertEquals("filled device", 0x55, deviceMemory.get(0xD));
+        assertEquals("not filled", 0x13, memory.get(0x8016));
+
+        try {
+            memory.fill(0xFFF0, 0x20, (short) 0);
+            fail("filled past the end of memory");
+        } catch (IndexOutOfBoundsException ioobe) {
+            // expected
+        }
+
+        // Code written in bulk over code which has already run is picked up.
+        load(memory, new int[]{
+                    0x8401, // SET A, 0x1
+                    0x85c3 // :crash SUB PC, 1
+                });
+        cpu.step(2);
+        assertEquals("A", 1, cpu.A());
+        memory.write(0, new short[]{(short) 0x8801}, 0, 1);
+        memory.copy(0, 1, 1);
+        memory.fill(2, 1, (short) 0x85c3);
+        cpu.step(3);
+        assertEquals("rewritten code", 2, cpu.A());
+        assertEquals("PC", 2, cpu.PC());
+    }
+
+    /**
+     * A program that loops forever exercising arithmetic, memory writes, the
+     * stack, subroutine calls and conditional skips.
+     */
+    static final int[] loopProgram = new int[]{
+        0x8001, // SET A, 0x0
+        0x8402, // :loop ADD A, 0x1
+        0x01e1, // SET [0x1000], A
+        0x1000,
+        0x7c10, // JSR sub
+        0x0007,
+        0x85c1, // SET PC, loop
+        0x800c, // :sub IFE A, 0x0
+        0x8412, //     ADD B, 0x1
+        0x61c1 // SET PC, POP
+    };
+    /**
+     * A program that polls the keyboard at 0x9000 while it counts to 60000 in
+     * a register, then stores the count at 0x1000 and halts. It never writes
+     * to memory while it is counting.
+     */
+    static final int[] registerPollingProgram = new int[]{
+        0x8412, // :loop ADD B, 0x1
+        0x7801, // SET A, [0x9000]
+        0x9000,
+        0x7c1c, // IFE B, 60000
+        0xea60,
+        0x9dc1, // SET PC, done
+        0x81c1, // SET PC, loop
+        0x05e1, // :done SET [0x1000], B
+        0x1000,
+        0x85c3 // SUB PC, 1
+    };
+
+    static void load(Memory memory, int[] program) {
+        for (int i = 0; i < program.length; i++) {
+            memory.put(i, (short) program[i]);
+        }
+    }
+
+    private static void assertSameState(String message, DCPU16 expected, DCPU16 actual) {
+        for (DCPU16.Register r : DCPU16.Register.values()) {
+            assertEquals(message + " " + r.name(), expected.register(r), actual.register(r));
+        }
+
+        assertEquals(message + " PC", expected.PC(), actual.PC());
+        assertEquals(message + " SP", expected.SP(), actual.SP());
+        assertEquals(message + " O", expected.O(), actual.O());
+        assertEquals(message + " cycles", expected.cycles(), actual.cycles());
+        assertEquals(message + " instructions", expected.instructions(), actual.instructions());
+        // Reading the keyboard would consume keys, so only RAM is compared.
+        for (int i = 0; i < 0x10000; i++) {
+            if (i < 0x8000 || i >= 0xA000) {
+                assertEquals(message + " memory at " + i, expected.memory().get(i), actual.memory().get(i));
+            }
+        }
+    }
+
+    /**
+     * Test saving and restoring the state of a CPU and its peripherals.
+     */
+    @Test
+    public void saveStateTest() throws IllegalOpcodeException {
+        System.out.println("Testing save and restore.");
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            DCPU16Emulator cpu = (DCPU16Emulator) createCPU();
+            HeadlessConsole console = new HeadlessConsole(2, 4, new short[]{'a', 'b'});
+            cpu.install(console.getScreen(), 0x8000);
+            cpu.install(console.getKeyboard(), 0x9000);
+            load(cpu.memory(), loopProgram);
+            cpu.memory().put(0x8000, (short) 'x');
+            assertEquals("first key", 'a', cpu.memory().get(0x9000));
+            cpu.runFor(1000);
+            cpu.setSkipping(true);
+
+            ByteBuffer buffer = ByteBuffer.allocate(cpu.stateSize()).order(order);
+            cpu.saveState(buffer);
+            assertEquals("size", 0, buffer.remaining());
+            buffer.flip();
+
+            // Restore into a new CPU, which should then carry on exactly as the original.
+            DCPU16Emulator copy = (DCPU16Emulator) createCPU();
+            HeadlessConsole copyConsole = new HeadlessConsole(2, 4, new short[]{'a', 'b'});
+            copy.install(copyConsole.getScreen(), 0x8000);
+            copy.install(copyConsole.getKeyboard(), 0x9000);
+            copy.restoreState(buffer.duplicate().order(order));
+            assertTrue("skipping", copy.skipping());
+            assertEquals("snapshot", cpu.snapshot().PC(), copy.snapshot().PC());
+            assertSameState(order + " restored", cpu, copy);
+            assertEquals("screen", "x", copyConsole.dump()[0]);
+            assertEquals("second key", 'b', copy.memory().get(0x9000));
+            assertEquals("second key", 'b', cpu.memory().get(0x9000));
+            cpu.runFor(5000);
+            copy.runFor(5000);
+            assertSameState(order + " after running", cpu, copy);
+
+            // Restoring the original puts it back where it was.
+            cpu.memory().put(0x8000, (short) 'y');
+            cpu.restoreState(buffer.duplicate().order(order));
+            assertEquals("screen", "x", console.dump()[0]);
+            assertEquals("cycles", copy.cycles() - 5000, cpu.cycles(), 10);
+        }
+
+        DCPU16Emulator cpu = (DCPU16Emulator) createCPU();
+        load(cpu.memory(), loopProgram);
+        ByteBuffer buffer = ByteBuffer.allocate(cpu.stateSize());
+        cpu.saveState(buffer);
+        buffer.flip();
+        try {
+            cpu.restoreState(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+            fail("restored in the wrong byte order");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        HeadlessConsole console = new HeadlessConsole(2, 4, new short[0]);
+        cpu.install(console.getScreen(), 0x8000);
+        buffer = ByteBuffer.allocate(cpu.stateSize());
+        cpu.saveState(buffer);
+        buffer.flip();
+        try {
+            ((DCPU16Emulator) createCPU()).restoreState(buffer);
+            fail("restored without the peripheral");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // A state that cannot be restored leaves the CPU as it was.
+        DCPU16Emulator other = (DCPU16Emulator) createCPU();
+        load(other.memory(), new int[]{0x8001, 0x8402, 0x85c3});
+        other.runFor(1000);
+        try {
+            other.restoreState(buffer.duplicate());
+            fail("restored without the peripheral");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertEquals("A", 1, other.A());
+        assertEquals("PC", 2, other.PC());
+        assertEquals("memory", 0x8402, other.memory().get(1) & 0xFFFF);
+        assertEquals("state", DCPU16.State.HALTED, other.state());
+
+        // A halted CPU is restored halted, and a running one running.
+        buffer = ByteBuffer.allocate(other.stateSize());
+        other.saveState(buffer);
+        buffer.flip();
+        cpu = (DCPU16Emulator) createCPU();
+        cpu.restoreState(buffer);
+        assertEquals("state", DCPU16.State.HALTED, cpu.state());
+        assertEquals("PC", 2, cpu.PC());
+        cpu = (DCPU16Emulator) createCPU();
+        load(cpu.memory(), loopProgram);
+        buffer = ByteBuffer.allocate(cpu.stateSize());
+        cpu.saveState(buffer);
+        buffer.flip();
+        other.restoreState(buffer);
+        assertEquals("state", DCPU16.State.RUNNING, other.state());
+    }
+
+    private static long bytesAllocatedPerMillionSteps(com.sun.management.ThreadMXBean threadMXBean, DCPU16 cpu) throws IllegalOpcodeException {
+        long threadID = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadID);
+        for (int i = 0; i < 1000000; i++) {
+            cpu.step();
+        }
+
+        return threadMXBean.getThreadAllocatedBytes(threadID) - before;
+    }
+
+    /**
+     * Test that stepping the CPU does not allocate memory, with and without
+     * listeners attached.
+     */
+    @Test
+    public void allocationTest() throws IllegalOpcodeException {
+        System.out.println("Testing allocation.");
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Thread allocation measurement is not supported on this JVM.");
+            return;
+        }
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocation measurement is not supported on this JVM.");
+            return;
+        }
+
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        // Allow for the measurement itself and anything the JVM does behind our back, but not for anything per instruction.
+        long budget = 16 * 1024;
+
+        DCPU16 cpu = createCPU();
+        load(cpu.memory(), loopProgram);
+        bytesAllocatedPerMillionSteps(threadMXBean, cpu); // warm up
+        long allocated = bytesAllocatedPerMillionSteps(threadMXBean, cpu);
+        System.out.printf("%d bytes allocated per million instructions without listeners.\n", allocated);
+        assertTrue("allocated " + allocated + " bytes per million instructions without listeners", allocated <= budget);
+
+        cpu.addListener(new DCPU16.CPUEventListener() {
+
+            @Override
+            public void instructionExecuted(DCPU16.CPUEvent event) {
+            }
+
+            @Override
+            public void memoryModified(DCPU16.CPUEvent event) {
+            }
+        });
+        bytesAllocatedPerMillionSteps(threadMXBean, cpu); // warm up
+        allocated = bytesAllocatedPerMillionSteps(threadMXBean, cpu);
+        System.out.printf("%d bytes allocated per million instructions with listeners.\n", allocated);
+        assertTrue("allocated " + allocated + " bytes per million instructions with listeners", allocated <= budget);
+    }
 }
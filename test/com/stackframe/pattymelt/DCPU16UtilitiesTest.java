@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DCPU16Utilities.
+ *
+ * @author mcculley
+ */
+public class DCPU16UtilitiesTest {
+
+    /**
+     * Test loading binary images in either byte order, with a single change
+     * notification.
+     */
+    @Test
+    public void loadBinaryTest() throws Exception {
+        System.out.println("Testing loading binary images.");
+        DCPU16 cpu = new DCPU16Emulator();
+        final int[] notifications = new int[3];
+        cpu.addListener(new DCPU16.CPUEventListener() {
+
+            @Override
+            public void instructionExecuted(DCPU16.CPUEvent event) {
+            }
+
+            @Override
+            public void memoryModified(DCPU16.CPUEvent event) {
+                notifications[0]++;
+                notifications[1] = event.addressOfMemoryModification();
+                notifications[2] = event.lengthOfMemoryModification();
+            }
+        });
+
+        byte[] bytes = {0x01, 0x7c, 0x30, 0x00, (byte) 0xc3, (byte) 0x85};
+        DCPU16Utilities.load(new ByteArrayInputStream(bytes), cpu.memory(), 0x100);
+        assertEquals("notifications", 1, notifications[0]);
+        assertEquals("address", 0x100, notifications[1]);
+        assertEquals("length", 3, notifications[2]);
+        assertEquals("little endian", (short) 0x7c01, cpu.memory().get(0x100));
+        assertEquals("little endian", (short) 0x85c3, cpu.memory().get(0x102));
+
+        DCPU16Utilities.load(ByteBuffer.wrap(bytes), ByteOrder.BIG_ENDIAN, cpu.memory(), 0);
+        assertEquals("big endian", (short) 0x017c, cpu.memory().get(0));
+        assertEquals("big endian", (short) 0x3000, cpu.memory().get(1));
+        assertEquals("big endian", (short) 0xc385, cpu.memory().get(2));
+
+        // A full image fills all of memory.
+        ByteBuffer image = ByteBuffer.allocate(0x20000).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < 0x10000; i++) {
+            image.putShort((short) i);
+        }
+
+        image.flip();
+        DCPU16Utilities.load(image, ByteOrder.BIG_ENDIAN, cpu.memory(), 0);
+        assertEquals("image", (short) 0x1234, cpu.memory().get(0x1234));
+        assertEquals("image", (short) 0xFFFF, cpu.memory().get(0xFFFF));
+
+        try {
+            DCPU16Utilities.load(new ByteArrayInputStream(bytes, 0, 5), cpu.memory(), 0);
+            fail("loaded half a word");
+        } catch (EOFException eofe) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that files are recognized as hex or binary.
+     */
+    @Test
+    public void loadFileTest() throws Exception {
+        System.out.println("Testing loading files.");
+        File file = File.createTempFile("program", ".hex");
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write("7c01\n0030\n85c3\n");
+            writer.close();
+            Memory memory = new ArrayMemory(0x10000);
+            DCPU16Utilities.load(file, memory);
+            assertEquals("hex", (short) 0x7c01, memory.get(0));
+            assertEquals("hex", (short) 0x85c3, memory.get(2));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that CPUs created from one image share its pages until they write
+     * to them.
+     */
+    @Test
+    public void createCPUsTest() throws Exception {
+        System.out.println("Testing creating CPUs from an image.");
+        Memory image = new ArrayMemory(0x10000);
+        short[] program = {
+            0x7de1, 0x1000, 0x0020, // SET [0x1000], 0x20
+            (short) 0x85c3 // SUB PC, 1
+        };
+        image.write(0, program, 0, program.length);
+        image.put(0x8000, (short) 1);
+
+        for (String engine : new String[]{"interpreter", "block", "jit"}) {
+            DCPU16[] cpus = DCPU16Utilities.createCPUs(engine, image, 3);
+            assertEquals("count", 3, cpus.length);
+            for (DCPU16 cpu : cpus) {
+                PagedMemory ram = ((DCPU16Emulator) cpu).ram();
+                assertEquals(engine + " allocated", 2, ram.pagesAllocated());
+                assertEquals(engine + " shared", 2, ram.pagesShared());
+                assertEquals(engine + " loaded", 1, cpu.memory().get(0x8000));
+            }
+
+            cpus[0].runFor(10);
+            assertEquals(engine + " written", 0x20, cpus[0].memory().get(0x1000));
+            assertEquals(engine + " other CPU", 0, cpus[1].memory().get(0x1000));
+            assertEquals(engine + " image", 0, image.get(0x1000));
+            PagedMemory ram = ((DCPU16Emulator) cpus[0]).ram();
+            assertEquals(engine + " allocated after write", 3, ram.pagesAllocated());
+            assertEquals(engine + " shared after write", 2, ram.pagesShared());
+
+            cpus[1].memory().put(0, (short) 0x85c3);
+            cpus[1].runFor(10);
+            assertEquals(engine + " modified code", 0, cpus[1].memory().get(0x1000));
+            cpus[2].runFor(10);
+            assertEquals(engine + " unmodified code", 0x20, cpus[2].memory().get(0x1000));
+        }
+    }
+}
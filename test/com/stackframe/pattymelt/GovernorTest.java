@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Governor.
+ *
+ * @author mcculley
+ */
+public class GovernorTest {
+
+    /**
+     * Test that a governed CPU runs at roughly the target clock rate.
+     */
+    @Test
+    public void pacingTest() throws Exception {
+        System.out.println("Testing pacing.");
+        DCPU16 cpu = new DCPU16Emulator();
+        DCPU16Test.load(cpu.memory(), DCPU16Test.loopProgram);
+        Governor governor = new Governor(cpu);
+        assertEquals("target", 100000, governor.targetFrequency());
+        Thread thread = new Thread(governor);
+        long start = System.nanoTime();
+        thread.start();
+        Thread.sleep(1500);
+        thread.interrupt();
+        thread.join();
+        long elapsed = System.nanoTime() - start;
+        double expected = elapsed * 100000 / 1e9;
+        assertTrue("cycles " + cpu.cycles() + " expected " + expected, Math.abs(cpu.cycles() - expected) < expected * 0.25);
+        assertTrue("achieved " + governor.achievedFrequency(), Math.abs(governor.achievedFrequency() - 100000) < 25000);
+    }
+
+    /**
+     * Test that a CPU waiting for a key is parked until one is typed.
+     */
+    @Test
+    public void inputTest() throws Exception {
+        System.out.println("Testing waiting for input.");
+        DCPU16 cpu = new DCPU16Emulator();
+        DCPU16Test.load(cpu.memory(), new int[]{
+                    0x7801, // :loop SET A, [0x9000]
+                    0x9000,
+                    0x800c, // IFE A, 0
+                    0x81c1, // SET PC, loop
+                    0x85c3 // :halt SUB PC, 1
+                });
+        Console console = new Console(16, 32);
+        cpu.install(console.getKeyboard(), 0x9000);
+        Governor governor = new Governor(cpu, 10000000);
+        Thread thread = new Thread(governor);
+        thread.start();
+        try {
+            Thread.sleep(200);
+            long parked = cpu.snapshot().cycles();
+            Thread.sleep(200);
+            assertEquals("cycles while parked", parked, cpu.snapshot().cycles());
+            console.typed((short) 'k');
+            Thread.sleep(200);
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+
+        assertEquals("A", 'k', cpu.A());
+        assertEquals("PC", 4, cpu.PC());
+    }
+
+    /**
+     * Test that a frequency of zero runs the CPU without a governor.
+     */
+    @Test
+    public void runnerTest() {
+        System.out.println("Testing unlimited frequency.");
+        DCPU16 cpu = new DCPU16Emulator();
+        assertSame("unlimited", cpu, Governor.runner(cpu, 0));
+        assertTrue("governed", Governor.runner(cpu, Governor.DEFAULT_FREQUENCY) instanceof Governor);
+        try {
+            Governor.runner(cpu, -1);
+            fail("negative frequency");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for MemoryTableModel.
+ *
+ * @author mcculley
+ */
+public class MemoryTableModelTest {
+
+    private final List<int[]> events = new ArrayList<int[]>();
+    private DCPU16 cpu;
+    private MemoryTableModel model;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu = new DCPU16Emulator();
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                model = new MemoryTableModel(cpu);
+                model.addTableModelListener(new TableModelListener() {
+
+                    @Override
+                    public void tableChanged(TableModelEvent tme) {
+                        assertTrue("on EDT", SwingUtilities.isEventDispatchThread());
+                        events.add(new int[]{tme.getFirstRow(), tme.getLastRow()});
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Write to memory on the EDT and wait for the writes to be recorded, so
+     * that a frame can't be flushed part way through.
+     */
+    private void write(final int start, final int end, final int step) throws Exception {
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = start; i < end; i += step) {
+                    cpu.memory().put(i, (short) i);
+                }
+
+                try {
+                    model.awaitDelivery();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+        });
+    }
+
+    private List<int[]> waitForEvents() throws Exception {
+        Thread.sleep(100);
+        final List<int[]> copy = new ArrayList<int[]>();
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                copy.addAll(events);
+                events.clear();
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * Test that writes to adjacent rows are sent as one range.
+     */
+    @Test
+    public void adjacentRowsTest() throws Exception {
+        System.out.println("Testing adjacent dirty rows.");
+        write(0x100, 0x180, 1);
+        write(0x400, 0x401, 1);
+        List<int[]> received = waitForEvents();
+        assertEquals("events", 2, received.size());
+        assertArrayEquals("first range", new int[]{0x20, 0x2F}, received.get(0));
+        assertArrayEquals("second range", new int[]{0x80, 0x80}, received.get(1));
+    }
+
+    /**
+     * Test that writes scattered all over memory collapse into one range.
+     */
+    @Test
+    public void scatteredRowsTest() throws Exception {
+        System.out.println("Testing scattered dirty rows.");
+        write(0, 0x10000, 0x100);
+
+        List<int[]> received = waitForEvents();
+        assertEquals("events", 1, received.size());
+        assertArrayEquals("range", new int[]{0, 0xFFFF / 8 / 0x20 * 0x20}, received.get(0));
+    }
+
+    /**
+     * Test that cell values are formatted correctly and are not rebuilt for
+     * every repaint.
+     */
+    @Test
+    public void cellValueTest() throws Exception {
+        System.out.println("Testing cell values.");
+        write(0x48, 0x50, 1);
+        waitForEvents();
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                assertEquals("address", "0048", model.getValueAt(9, 0));
+                assertEquals("word", "004A", model.getValueAt(9, 3));
+                assertSame("word is not rebuilt", model.getValueAt(9, 3), model.getValueAt(9, 3));
+                assertEquals("ASCII", "HIJKLMNO", model.getValueAt(9, 9));
+                assertSame("ASCII is cached", model.getValueAt(9, 9), model.getValueAt(9, 9));
+                assertEquals("unprintable", "........", model.getValueAt(0, 9));
+            }
+        });
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                cpu.memory().put(0x4F, (short) '!');
+            }
+        });
+        waitForEvents();
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                assertEquals("ASCII after write", "HIJKLMN!", model.getValueAt(9, 9));
+                assertEquals("hex", "FFFF", DCPU16Utilities.toHex(-1));
+            }
+        });
+    }
+}
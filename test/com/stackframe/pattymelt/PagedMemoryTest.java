@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PagedMemory.
+ *
+ * @author mcculley
+ */
+public class PagedMemoryTest {
+
+    /**
+     * Test that pages are only allocated when they are written to.
+     */
+    @Test
+    public void allocationTest() {
+        System.out.println("Testing page allocation.");
+        PagedMemory memory = new PagedMemory(0x10000);
+        assertEquals("size", 0x10000, memory.size());
+        assertEquals("empty", 0, memory.pagesAllocated());
+        assertEquals("unwritten", 0, memory.get(0x1234));
+        short[] words = new short[0x200];
+        memory.read(0x80, words, 0, words.length);
+        assertEquals("reads allocate nothing", 0, memory.pagesAllocated());
+
+        memory.put(0x1234, (short) 7);
+        assertEquals("one page", 1, memory.pagesAllocated());
+        assertEquals("written", 7, memory.get(0x1234));
+
+        memory.fill(0x2000, PagedMemory.PAGE_SIZE, (short) 0);
+        assertEquals("filling an empty page with zeros", 1, memory.pagesAllocated());
+        memory.fill(0x1200, PagedMemory.PAGE_SIZE, (short) 0);
+        assertEquals("clearing a page gives it back", 0, memory.pagesAllocated());
+        assertEquals("cleared", 0, memory.get(0x1234));
+    }
+
+    /**
+     * Test block operations which cross pages.
+     */
+    @Test
+    public void blockTest() {
+        System.out.println("Testing block operations across pages.");
+        PagedMemory memory = new PagedMemory(0x1000);
+        short[] words = new short[0x300];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = (short) (i + 1);
+        }
+
+        memory.write(0xF0, words, 0, words.length);
+        assertEquals("pages", 4, memory.pagesAllocated());
+        short[] read = new short[words.length + 2];
+        memory.read(0xEF, read, 0, read.length);
+        assertEquals("before", 0, read[0]);
+        for (int i = 0; i < words.length; i++) {
+            assertEquals("word " + i, words[i], read[i + 1]);
+        }
+
+        assertEquals("after", 0, read[read.length - 1]);
+
+        memory.copy(0xF0, 0xF8, 0x100);
+        for (int i = 0; i < 0x100; i++) {
+            assertEquals("overlapping copy " + i, words[i], memory.get(0xF8 + i));
+        }
+
+        try {
+            memory.write(0xF00, words, 0, words.length);
+            fail("wrote past the end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that shared pages are copied on the first write and that neither
+     * instance sees the other's writes.
+     */
+    @Test
+    public void shareTest() {
+        System.out.println("Testing shared pages.");
+        PagedMemory image = new PagedMemory(0x1000);
+        image.put(0x10, (short) 1);
+        image.put(0x210, (short) 2);
+        PagedMemory a = new PagedMemory(0x1000);
+        PagedMemory b = new PagedMemory(0x1000);
+        a.shareFrom(image);
+        b.shareFrom(image);
+        assertEquals("shared", 2, a.pagesShared());
+        assertEquals("loaded", 2, b.get(0x210));
+
+        a.put(0x11, (short) 3);
+        assertEquals("copied on write", 1, a.pagesShared());
+        assertEquals("copy has the image", 1, a.get(0x10));
+        assertEquals("written", 3, a.get(0x11));
+        assertEquals("other instance", 0, b.get(0x11));
+        assertEquals("image", 0, image.get(0x11));
+
+        image.put(0x210, (short) 4);
+        assertEquals("image copies too", 2, a.get(0x210));
+        assertEquals("image copies too", 2, b.get(0x210));
+
+        b.fill(0, 0x1000, (short) 0);
+        assertEquals("cleared", 0, b.pagesAllocated());
+        assertEquals("after clear", 1, a.get(0x10));
+
+        try {
+            a.shareFrom(new PagedMemory(0x100));
+            fail("shared with a different size");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that writing zeros does not allocate pages.
+     */
+    @Test
+    public void sparseWriteTest() {
+        System.out.println("Testing sparse writes.");
+        PagedMemory memory = new PagedMemory(0x10000);
+        short[] words = new short[0x10000];
+        words[0x8123] = 5;
+        memory.write(0, words, 0, words.length);
+        assertEquals("pages", 1, memory.pagesAllocated());
+        assertEquals("written", 5, memory.get(0x8123));
+    }
+}
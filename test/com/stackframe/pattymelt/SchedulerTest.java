@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Scheduler.
+ *
+ * @author mcculley
+ */
+public class SchedulerTest {
+
+    private static void waitFor(String message, Scheduler.ScheduledCPU s, long quanta) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (s.quanta() < quanta && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(message, s.quanta() >= quanta);
+    }
+
+    /**
+     * Test that many CPUs share a few workers evenly.
+     */
+    @Test
+    public void fairnessTest() throws Exception {
+        System.out.println("Testing fairness.");
+        Scheduler scheduler = new Scheduler(2, 1000);
+        List<Scheduler.ScheduledCPU> scheduled = new ArrayList<Scheduler.ScheduledCPU>();
+        try {
+            for (int i = 0; i < 16; i++) {
+                DCPU16 cpu = new DCPU16Emulator();
+                DCPU16Test.load(cpu.memory(), DCPU16Test.loopProgram);
+                scheduled.add(scheduler.add(cpu));
+            }
+
+            Thread.sleep(500);
+        } finally {
+            scheduler.shutdown();
+        }
+
+        for (Scheduler.ScheduledCPU s : scheduled) {
+            assertTrue("runnable", s.runnable());
+            assertTrue("quanta " + s.quanta(), s.quanta() > 10);
+            assertEquals("cycles", s.cpu().cycles(), s.cycles());
+            assertTrue("lag", s.maxLagNanos() >= s.meanLagNanos());
+        }
+
+        assertTrue("fairness " + scheduler.fairness(), scheduler.fairness() > 0.8);
+    }
+
+    /**
+     * Test that halted, idle and paused CPUs are taken off the queues and put
+     * back when there is something for them to do.
+     */
+    @Test
+    public void descheduleTest() throws Exception {
+        System.out.println("Testing descheduling.");
+        Scheduler scheduler = new Scheduler(2, 1000);
+        try {
+            DCPU16 halting = new DCPU16Emulator();
+            DCPU16Test.load(halting.memory(), new int[]{
+                        0x8401, // SET A, 0x1
+                        0x85c3 // :crash SUB PC, 1
+                    });
+            DCPU16 waiting = new DCPU16Emulator();
+            DCPU16Test.load(waiting.memory(), new int[]{
+                        0x7801, // :loop SET A, [0x9000]
+                        0x9000,
+                        0x800c, // IFE A, 0
+                        0x81c1, // SET PC, loop
+                        0x85c3 // :halt SUB PC, 1
+                    });
+            Console console = new Console(16, 32);
+            waiting.install(console.getKeyboard(), 0x9000);
+            DCPU16 looping = new DCPU16Emulator();
+            DCPU16Test.load(looping.memory(), DCPU16Test.loopProgram);
+
+            Scheduler.ScheduledCPU halted = scheduler.add(halting);
+            Scheduler.ScheduledCPU idle = scheduler.add(waiting);
+            Scheduler.ScheduledCPU paused = scheduler.add(looping);
+            paused.pause();
+            Thread.sleep(200);
+
+            long[] quanta = {halted.quanta(), idle.quanta(), paused.quanta()};
+            Thread.sleep(200);
+            assertFalse("halted runnable", halted.runnable());
+            assertFalse("idle runnable", idle.runnable());
+            assertFalse("paused runnable", paused.runnable());
+            assertEquals("halted quanta", quanta[0], halted.quanta());
+            assertEquals("idle quanta", quanta[1], idle.quanta());
+            assertEquals("paused quanta", quanta[2], paused.quanta());
+
+            console.typed((short) 'k');
+            waitFor("idle CPU given input", idle, quanta[1] + 1);
+
+            paused.resume();
+            waitFor("paused CPU resumed", paused, quanta[2] + 10);
+
+            halted.wake();
+            waitFor("halted CPU woken", halted, quanta[0] + 1);
+        } finally {
+            scheduler.shutdown();
+        }
+
+        DCPU16 waiting = scheduler.cpus().get(1).cpu();
+        assertEquals("A", 'k', waiting.A());
+        assertEquals("PC", 4, waiting.PC());
+    }
+
+    /**
+     * Test that a CPU which polls for input while it does other work keeps
+     * being scheduled.
+     */
+    @Test
+    public void pollingTest() throws Exception {
+        System.out.println("Testing a CPU which polls while working.");
+        Scheduler scheduler = new Scheduler(2, 1000);
+        try {
+            DCPU16 cpu = new DCPU16Emulator();
+            HeadlessConsole console = new HeadlessConsole(16, 32, new short[0]);
+            cpu.install(console.getKeyboard(), 0x9000);
+            DCPU16Test.load(cpu.memory(), new int[]{
+                        0x85e2, // :loop ADD [0x1000], 1
+                        0x1000,
+                        0x7801, // SET A, [0x9000]
+                        0x9000,
+                        0x81c1 // SET PC, loop
+                    });
+            Scheduler.ScheduledCPU polling = scheduler.add(cpu);
+            Thread.sleep(200);
+
+            long quanta = polling.quanta();
+            short counter = cpu.memory().get(0x1000);
+            waitFor("still scheduled", polling, quanta + 10);
+            assertTrue("runnable", polling.runnable());
+            assertTrue("still working", cpu.memory().get(0x1000) != counter);
+
+            // Working only in registers between polls counts as working too.
+            cpu = new DCPU16Emulator();
+            console = new HeadlessConsole(16, 32, new short[0]);
+            cpu.install(console.getKeyboard(), 0x9000);
+            DCPU16Test.load(cpu.memory(), DCPU16Test.registerPollingProgram);
+            Scheduler.ScheduledCPU counting = scheduler.add(cpu);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cpu.state() != DCPU16.State.HALTED && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals("state", DCPU16.State.HALTED, cpu.state());
+            assertFalse("runnable when done", counting.runnable());
+            assertEquals("result", (short) 60000, cpu.memory().get(0x1000));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Test that checking an idle CPU for input does not notify its
+     * listeners.
+     */
+    @Test
+    public void probeTest() throws Exception {
+        System.out.println("Testing probing idle CPUs.");
+        Scheduler scheduler = new Scheduler(2, 1000);
+        try {
+            DCPU16 cpu = new DCPU16Emulator();
+            DCPU16Test.load(cpu.memory(), new int[]{
+                        0x7801, // :loop SET A, [0x9000]
+                        0x9000,
+                        0x800c, // IFE A, 0
+                        0x81c1, // SET PC, loop
+                        0x85c3 // :halt SUB PC, 1
+                    });
+            Console console = new Console(16, 32);
+            cpu.install(console.getKeyboard(), 0x9000);
+            final int[] notifications = new int[1];
+            cpu.addListener(new DCPU16.CPUEventListener() {
+
+                @Override
+                public void instructionExecuted(DCPU16.CPUEvent event) {
+                    synchronized (notifications) {
+                        notifications[0]++;
+                    }
+                }
+
+                @Override
+                public void memoryModified(DCPU16.CPUEvent event) {
+                }
+            });
+            Scheduler.ScheduledCPU idle = scheduler.add(cpu);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (idle.runnable() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertFalse("idle runnable", idle.runnable());
+            int before;
+            synchronized (notifications) {
+                before = notifications[0];
+            }
+
+            // Plenty of time for the idle CPU to be probed many times.
+            Thread.sleep(100);
+            synchronized (notifications) {
+                assertEquals("notifications while idle", before, notifications[0]);
+            }
+
+            long quanta = idle.quanta();
+            console.typed((short) 'k');
+            waitFor("idle CPU given input", idle, quanta + 1);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
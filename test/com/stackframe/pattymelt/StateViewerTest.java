@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.awt.Component;
+import java.awt.Container;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for StateViewer.
+ *
+ * @author mcculley
+ */
+public class StateViewerTest {
+
+    /**
+     * Test that viewing a CPU does not attach a listener to it, which would
+     * keep the JIT from compiling.
+     */
+    @Test
+    public void noListenerTest() throws Exception {
+        System.out.println("Testing that the state viewer does not listen to the CPU.");
+        final DCPU16JIT cpu = new DCPU16JIT();
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                new StateViewer(cpu);
+            }
+        });
+        assertFalse("listeners", cpu.hasListeners());
+
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    new StateViewer(cpu, 0);
+                    fail("refresh rate of 0");
+                } catch (IllegalArgumentException iae) {
+                    // expected
+                }
+            }
+        });
+    }
+
+    private static JTextField firstField(Container container) {
+        for (Component component : container.getComponents()) {
+            if (component instanceof JTextField) {
+                return (JTextField) component;
+            } else if (component instanceof Container) {
+                JTextField field = firstField((Container) component);
+                if (field != null) {
+                    return field;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Test that refresh shows a single step straight away, without waiting
+     * for the timer.
+     */
+    @Test
+    public void refreshTest() throws Exception {
+        System.out.println("Testing refreshing after a step.");
+        final DCPU16 cpu = new DCPU16Emulator();
+        DCPU16Test.load(cpu.memory(), DCPU16Test.loopProgram);
+        SwingUtilities.invokeAndWait(new Runnable() {
+
+            @Override
+            public void run() {
+                // The widget is never put in a window, so its timer never runs.
+                StateViewer viewer = new StateViewer(cpu);
+                JTextField pcField = firstField(viewer.getWidget());
+                assertEquals("PC before", "0000", pcField.getText());
+                try {
+                    cpu.step(2);
+                } catch (IllegalOpcodeException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+
+                viewer.refresh();
+                assertEquals("PC after", "0002", pcField.getText());
+            }
+        });
+    }
+}
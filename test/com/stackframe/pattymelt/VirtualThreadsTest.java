@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012, Gene McCulley
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, 
+ *   this list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright 
+ *   notice, this list of conditions and the following disclaimer in the 
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.stackframe.pattymelt;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for VirtualThreads.
+ *
+ * @author mcculley
+ */
+public class VirtualThreadsTest {
+
+    /**
+     * Test that threads are ordinary ones on a JVM without virtual threads.
+     */
+    @Test
+    public void fallbackTest() throws Exception {
+        System.out.println("Testing the fallback to ordinary threads.");
+        Assume.assumeFalse("virtual threads are available", VirtualThreads.available());
+        Thread thread = VirtualThreads.newThread(new DCPU16Emulator(), "DCPU-16");
+        assertFalse("virtual", VirtualThreads.isVirtual(thread));
+        assertFalse("current thread virtual", VirtualThreads.isVirtual(Thread.currentThread()));
+    }
+
+    /**
+     * Test running thousands of CPUs on virtual threads. Some are busy, some
+     * wait for a key and some poll the keyboard while they count in a
+     * register, and all of them have to get their turn.
+     */
+    @Test
+    public void manyVirtualThreadsTest() throws Exception {
+        System.out.println("Testing many CPUs on virtual threads.");
+        Assume.assumeTrue("virtual threads are not available", VirtualThreads.available());
+        int count = 3000;
+        List<DCPU16> cpus = new ArrayList<DCPU16>();
+        List<Thread> threads = new ArrayList<Thread>();
+        List<Console> consoles = new ArrayList<Console>();
+        for (int i = 0; i < count; i++) {
+            DCPU16 cpu = new DCPU16Emulator();
+            if (i % 3 == 0) {
+                DCPU16Test.load(cpu.memory(), DCPU16Test.loopProgram);
+            } else if (i % 3 == 1) {
+                DCPU16Test.load(cpu.memory(), new int[]{
+                            0x7801, // :loop SET A, [0x9000]
+                            0x9000,
+                            0x800c, // IFE A, 0
+                            0x81c1, // SET PC, loop
+                            0x85c3 // :halt SUB PC, 1
+                        });
+                Console console = new Console(16, 32);
+                cpu.install(console.getKeyboard(), 0x9000);
+                consoles.add(console);
+            } else {
+                DCPU16Test.load(cpu.memory(), DCPU16Test.registerPollingProgram);
+                cpu.install(new HeadlessConsole(16, 32, new short[0]).getKeyboard(), 0x9000);
+            }
+
+            Thread thread = VirtualThreads.newThread(cpu, "DCPU-16 " + i);
+            assertTrue("virtual", VirtualThreads.isVirtual(thread));
+            cpus.add(cpu);
+            threads.add(thread);
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            Thread.sleep(500);
+            for (Console console : consoles) {
+                console.typed((short) 'k');
+            }
+
+            long deadline = System.currentTimeMillis() + 60000;
+            for (int i = 0; i < count; i++) {
+                if (i % 3 != 0) {
+                    while (cpus.get(i).state() != DCPU16.State.HALTED && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(10);
+                    }
+                }
+            }
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            DCPU16 cpu = cpus.get(i);
+            if (i % 3 == 0) {
+                assertTrue("busy CPU " + i + " ran", cpu.instructions() > 0);
+            } else if (i % 3 == 1) {
+                assertEquals("A", 'k', cpu.A());
+                assertEquals("waiting state", DCPU16.State.HALTED, cpu.state());
+            } else {
+                assertEquals("counting state", DCPU16.State.HALTED, cpu.state());
+                assertEquals("count", (short) 60000, cpu.memory().get(0x1000));
+            }
+        }
+    }
+
+    /**
+     * Test running a CPU per thread for many CPUs, some busy and some waiting
+     * for input, on whatever threads VirtualThreads gives.
+     */
+    @Test
+    public void threadPerCPUTest() throws Exception {
+        System.out.println("Testing a thread per CPU with virtual threads " + (VirtualThreads.available() ? "available." : "not available."));
+        List<DCPU16> cpus = new ArrayList<DCPU16>();
+        List<Thread> threads = new ArrayList<Thread>();
+        List<Console> consoles = new ArrayList<Console>();
+        for (int i = 0; i < 200; i++) {
+            DCPU16 cpu = new DCPU16Emulator();
+            if (i % 2 == 0) {
+                DCPU16Test.load(cpu.memory(), DCPU16Test.loopProgram);
+            } else {
+                DCPU16Test.load(cpu.memory(), new int[]{
+                            0x7801, // :loop SET A, [0x9000]
+                            0x9000,
+                            0x800c, // IFE A, 0
+                            0x81c1, // SET PC, loop
+                            0x85c3 // :halt SUB PC, 1
+                        });
+                Console console = new Console(16, 32);
+                cpu.install(console.getKeyboard(), 0x9000);
+                consoles.add(console);
+            }
+
+            Thread thread = VirtualThreads.newThread(cpu, "DCPU-16 " + i);
+            assertEquals("virtual", VirtualThreads.available(), VirtualThreads.isVirtual(thread));
+            cpus.add(cpu);
+            threads.add(thread);
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            Thread.sleep(500);
+            for (Console console : consoles) {
+                console.typed((short) 'k');
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            for (int i = 1; i < cpus.size(); i += 2) {
+                while (cpus.get(i).state() != DCPU16.State.HALTED && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        for (int i = 0; i < cpus.size(); i++) {
+            DCPU16 cpu = cpus.get(i);
+            if (i % 2 == 0) {
+                assertTrue("busy CPU ran", cpu.instructions() > 0);
+                assertEquals("busy state", DCPU16.State.RUNNING, cpu.state());
+            } else {
+                assertEquals("A", 'k', cpu.A());
+                assertEquals("waiting state", DCPU16.State.HALTED, cpu.state());
+            }
+        }
+    }
+}